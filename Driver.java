@@ -1,68 +1,251 @@
-import dataflow.ControlFlowGraph;
-import dataflow.KangaTranslator;
-import dataflow.PopulateControlFlowGraph;
+import compiler.Cache;
+import compiler.Compiler;
+import compiler.Server;
+import compiler.Watcher;
+import dataflow.ControlFlowGraph.Allocator;
+import dataflow.ProcedureStore;
 import exception.MyException;
 import parser.ParseException;
-import parser.SpigletParser;
-import syntaxtree.Goal;
+import parser.TokenMgrError;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Created by ek on 7/2/14.
+ *
+ * -O<level> and --allocator= apply to the files following them, every other option applies to
+ * the whole run wherever it is given. All files are compiled concurrently, --jobs at a time, and
+ * reported in the order they were given. --server[=port] keeps the JVM running as a compile
+ * daemon instead, compiler.Client then sends it the files. --cache=dir reuses programs compiled
+ * before from the same source and options, --cache-limit bounds it in megabytes. --watch takes
+ * directories rather than files: their .spg files are compiled, then compiled again whenever they
+ * change, until the process is killed. Programs are only written to their .kg files, --echo
+ * prints them as well. --stream compiles a procedure at a time for programs too large to be held
+ * in memory, without the optimizations reading other procedures. --allocator=ssa selects the
+ * experimental SSA based allocator instead of Chaitin's.
  */
 public class Driver {
-	private static FileInputStream stream = null;
-	private static SpigletParser parser;
-	private static Goal tree;
-	private static String target, kanga;
-	private static int dotIndex;
-	private static PrintWriter out;
-	private static ControlFlowGraph cfg;
 
 	public static void main(String[] args) {
+		int level = 1;		/* optimization level, -O0 disables the optimizer */
+		Allocator allocator = Allocator.Chaitin;
+		int jobs = Runtime.getRuntime().availableProcessors();
+		Integer port = null;
+		String directory = null;			/* compiled programs cache, off unless given */
+		long limit = 64;					/* cache size in megabytes */
+		boolean watch = false;
+		boolean echo = false;				/* prints the programs as well */
+		boolean stream = false;				/* one procedure in memory at a time */
 		for(String arg : args) {
+			if(arg.matches("--jobs=[1-9]\\d*"))
+				jobs = Integer.parseInt(arg.substring(7));
+			if(arg.startsWith("--cache=") && arg.length() > 8)
+				directory = arg.substring(8);
+			if(arg.matches("--cache-limit=\\d+"))
+				limit = Long.parseLong(arg.substring(14));
+			if(arg.equals("--watch"))
+				watch = true;
+			if(arg.equals("--echo"))
+				echo = true;
+			if(arg.equals("--stream"))
+				stream = true;
+			if(arg.equals("--server"))
+				port = Server.defaultPort;
+			if(arg.matches("--server=\\d+"))
+				port = Integer.parseInt(arg.substring(9));
+		}
+		/* files are then compiled through compiler.Client */
+		if(port != null) {
 			try {
-				System.out.println("Trying \'" + arg + "\' ...");
-				if((dotIndex = arg.lastIndexOf(".spg")) == -1)
-					throw new MyException("invalid file type, \'.spg\' expected.");
+				new Server(port, jobs).serve();
+			} catch (IOException e) {
+				System.err.println(e.getMessage());
+			}
+			return;
+		}
 
-				target = arg.substring(0, dotIndex) + ".kg";
-				System.out.println("Output set to \'" + target + "\'.");
-				stream = new FileInputStream(arg);
-				parser = new SpigletParser(stream);
-				tree = parser.Goal();
-				cfg = new ControlFlowGraph();
-				tree.accept(new PopulateControlFlowGraph(cfg));
-				cfg.compute();
-				kanga = tree.accept(new KangaTranslator(cfg));
-				System.out.println(kanga);
+		Cache cache = null;
+		try {
+			if(directory != null)
+				cache = new Cache(new File(directory), limit << 20);
+		} catch (IOException e) {
+			System.err.println(e.getMessage());
+		}
 
-				out = new PrintWriter(target);
-				out.print(kanga);
-				out.flush();
-				out.close();
+		Watcher watcher = null;
+		ProcedureStore store = null;		/* one for all directories, their programs share procedures */
+		try {
+			if(watch) {
+				watcher = new Watcher(jobs);
+				store = new ProcedureStore(1 << 16);
+			}
+		} catch (IOException e) {
+			System.err.println(e.getMessage());
+			return;
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(jobs);
+		List<String> files = new ArrayList<String>();
+		List<Future<Void>> results = new ArrayList<Future<Void>>();
+		for(String arg : args) {
+			try {
+				if(arg.startsWith("-O")) {
+					if(!arg.matches("-O\\d"))
+						throw new MyException("invalid optimization level \'" + arg + "\'.");
+					level = arg.charAt(2) - '0';
+					continue;
+				}
+				if(arg.startsWith("--allocator=")) {
+					if(arg.equals("--allocator=ssa"))
+						allocator = Allocator.Chordal;
+					else if(arg.equals("--allocator=chaitin"))
+						allocator = Allocator.Chaitin;
+					else
+						throw new MyException("invalid allocator \'" + arg.substring(12) + "\', \'ssa\' or \'chaitin\' expected.");
+					continue;
+				}
+				if(arg.startsWith("--jobs=")) {
+					if(!arg.matches("--jobs=[1-9]\\d*"))
+						throw new MyException("invalid job count \'" + arg.substring(7) + "\'.");
+					continue;
+				}
+				if(arg.startsWith("--cache-limit=")) {
+					if(!arg.matches("--cache-limit=\\d+"))
+						throw new MyException("invalid cache limit \'" + arg.substring(14) + "\'.");
+					continue;
+				}
+				if(arg.startsWith("--cache=")) {
+					if(arg.length() == 8)
+						throw new MyException("cache directory expected.");
+					continue;
+				}
+				if(arg.equals("--watch") || arg.equals("--echo") || arg.equals("--stream"))
+					continue;
+				if(watcher != null) {
+					watcher.add(new File(arg), new Compiler(level, allocator, store, stream));
+					continue;
+				}
+			} catch (IOException e) {
+				System.err.println(e.getMessage());
+				continue;
+			} catch (MyException e) {
+				System.err.println(e.getMessage());
+				continue;
+			}
+			files.add(arg);
+			results.add(pool.submit(new Compilation(arg, new Compiler(level, allocator, null, stream), cache)));
+		}
+		pool.shutdown();
+		if(watcher != null) {
+			try {
+				watcher.watch();
+			} catch (IOException e) {
+				System.err.println(e.getMessage());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return;
+		}
 
+		for(int i = 0; i < files.size(); ++i) {
+			String arg = files.get(i);
+			System.out.println("Trying \'" + arg + "\' ...");
+			try {
+				System.out.println("Output set to \'" + getTarget(arg) + "\'.");
+				try {
+					results.get(i).get();
+				} catch (ExecutionException e) {
+					throw e.getCause();
+				}
+				if(echo) {
+					Files.copy(new File(getTarget(arg)).toPath(), System.out);
+					System.out.flush();
+				}
 			} catch (FileNotFoundException e) {
 				System.err.println(e.getMessage());
 			} catch (ParseException e) {
 				System.err.println(e.getMessage());
+			} catch (TokenMgrError e) {
+				System.err.println(e.getMessage());
 			} catch (MyException e) {
 				System.err.println(e.getMessage());
 				//e.printStackTrace();
-			} catch (Exception e) {
+			} catch (Throwable e) {
 				e.printStackTrace();
+			}
+		}
+	}
+
+	private static String getTarget(String arg) throws MyException {
+		int dotIndex;
+		if((dotIndex = arg.lastIndexOf(".spg")) == -1)
+			throw new MyException("invalid file type, \'.spg\' expected.");
+		return arg.substring(0, dotIndex) + ".kg";
+	}
+
+	/**
+	 * compiles a file and writes the Kanga program next to it, replacing the previous one only once
+	 * the compilation succeeds. With a cache, a hit is copied over without
+	 * parsing, a miss is stored once compiled.
+	 */
+	private static final class Compilation implements Callable<Void> {
+		private final String arg;
+		private final Compiler compiler;
+		private final Cache cache;			/* null if disabled */
+
+		private Compilation(String arg, Compiler compiler, Cache cache) {
+			this.arg = arg;
+			this.compiler = compiler;
+			this.cache = cache;
+		}
+
+		@Override
+		public Void call() throws Exception {
+			File target = new File(getTarget(arg));
+			byte[] source = read(arg);
+			String key = cache != null ? cache.getKey(source, compiler) : null;
+			File entry = cache != null ? cache.get(key) : null;
+			if(entry != null) {
+				Files.copy(entry.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				return null;
+			}
+
+			compiler.compile(new ByteArrayInputStream(source), target);
+			if(cache != null)
+				cache.put(key, target);
+			return null;
+		}
+
+		private static byte[] read(String file) throws IOException {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			InputStream stream = new FileInputStream(file);
+			try {
+				byte[] buffer = new byte[8192];
+				for(int n; (n = stream.read(buffer)) != -1; )
+					bytes.write(buffer, 0, n);
 			} finally {
 				try {
-					if(stream != null)
-						stream.close();
+					stream.close();
 				} catch (IOException e) {
 					e.printStackTrace();
 				}
 			}
+			return bytes.toByteArray();
 		}
 	}
 }
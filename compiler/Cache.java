@@ -0,0 +1,109 @@
+package compiler;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * On disk cache of compiled programs, content addressed: a Kanga program is stored under the
+ * SHA-256 of its Spiglet source and of the options it was compiled with, so a hit needs neither
+ * a parse nor any analysis. Reading an entry marks it as used, and once the entries exceed the
+ * size limit the least recently used ones are evicted.
+ *
+ * Entries are written to a temporary file and renamed into place, so compilations running
+ * concurrently, in one process or several, never see a partial entry.
+ */
+public final class Cache {
+	private static final String format = "1";		/* bump when the compiler output changes */
+	private static final Charset charset = Charset.forName("UTF-8");
+
+	private final File directory;
+	private final long limit;						/* bytes */
+
+	public Cache(File directory, long limit) throws IOException {
+		this.directory = directory;
+		this.limit = limit;
+		if(!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("cannot create cache directory \'" + directory + "\'.");
+	}
+
+	public String getKey(byte[] source, Compiler compiler) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		digest.update(String.format("%s %d %s %b\n", format, compiler.getLevel(), compiler.getAllocator(),
+				compiler.isStreaming()).getBytes(charset));
+		StringBuilder key = new StringBuilder();
+		for(byte b : digest.digest(source))
+			key.append(String.format("%02x", b));
+		return key.toString();
+	}
+
+	/**
+	 * @return the cached program file of a key, null on a miss
+	 */
+	public File get(String key) {
+		File entry = new File(directory, key + ".kg");
+		if(!entry.isFile())
+			return null;
+		entry.setLastModified(System.currentTimeMillis());
+		return entry;
+	}
+
+	/**
+	 * stores a copy of a compiled program file
+	 */
+	public void put(String key, File kanga) throws IOException {
+		File temporary = File.createTempFile(key, ".tmp", directory);
+		try {
+			Files.copy(kanga.toPath(), temporary.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			Files.move(temporary.toPath(), new File(directory, key + ".kg").toPath(),
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			temporary.delete();
+		}
+		evict();
+	}
+
+	/**
+	 * removes the least recently used entries until the cache fits its limit
+	 */
+	private synchronized void evict() {
+		File[] entries = directory.listFiles();
+		if(entries == null)
+			return;
+		long size = 0;
+		for(File entry : entries)
+			size += entry.length();
+		if(size <= limit)
+			return;
+		final long[] used = new long[entries.length];
+		for(int i = 0; i < entries.length; ++i)
+			used[i] = entries[i].lastModified();
+		Integer[] order = new Integer[entries.length];
+		for(int i = 0; i < order.length; ++i)
+			order[i] = i;
+		/* modification times are read once, other processes may touch entries meanwhile */
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Long.compare(used[a], used[b]);
+			}
+		});
+		for(int i = 0; i < order.length && size > limit; ++i) {
+			File entry = entries[order[i]];
+			long length = entry.length();
+			if(entry.getName().endsWith(".kg") && entry.delete())
+				size -= length;
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package compiler;
+
+import dataflow.ControlFlowGraph.Allocator;
+import exception.MyException;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+
+/**
+ * Command line client of the compile daemon, a drop in for Driver: takes the same -O and
+ * --allocator options plus --port, and writes each .kg file next to its .spg file. Paths are
+ * sent absolute, the server reads the files itself.
+ */
+public final class Client {
+
+	public static void main(String[] args) {
+		int level = 1, port = Server.defaultPort;
+		Allocator allocator = Allocator.Chaitin;
+		Socket socket = null;
+		try {
+			for(String arg : args)
+				if(arg.matches("--port=\\d+"))
+					port = Integer.parseInt(arg.substring(7));
+			socket = new Socket(InetAddress.getLoopbackAddress(), port);
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+			for(String arg : args) {
+				try {
+					if(arg.startsWith("--port="))
+						continue;
+					if(arg.startsWith("-O")) {
+						if(!arg.matches("-O\\d"))
+							throw new MyException("invalid optimization level \'" + arg + "\'.");
+						level = arg.charAt(2) - '0';
+						continue;
+					}
+					if(arg.startsWith("--allocator=")) {
+						allocator = Protocol.getAllocator(arg.substring(12));
+						continue;
+					}
+					int dotIndex;
+					if((dotIndex = arg.lastIndexOf(".spg")) == -1)
+						throw new MyException("invalid file type, \'.spg\' expected.");
+					String target = arg.substring(0, dotIndex) + ".kg";
+					out.write(String.format("COMPILE %d %s PATH %s\n", level, Protocol.getName(allocator),
+							new File(arg).getAbsolutePath()).getBytes(Protocol.charset));
+					out.flush();
+
+					String line = Protocol.readLine(in);
+					if(line == null)
+						throw new IOException("connection closed by the server");
+					String[] response = line.split(" ");
+					String payload = Protocol.readPayload(in, Integer.parseInt(response[1]));
+					if(!response[0].equals("OK")) {
+						System.err.println(payload);
+						continue;
+					}
+					PrintWriter writer = new PrintWriter(target);
+					writer.print(payload);
+					writer.close();
+				} catch (MyException e) {
+					System.err.println(e.getMessage());
+				}
+			}
+		} catch (IOException e) {
+			System.err.println(e.getMessage());
+		} finally {
+			try {
+				if(socket != null)
+					socket.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
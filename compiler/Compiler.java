@@ -0,0 +1,257 @@
+package compiler;
+
+import dataflow.ControlFlowGraph;
+import dataflow.ControlFlowGraph.Allocator;
+import dataflow.KangaTranslator;
+import dataflow.KangaTranslator.Gather;
+import dataflow.PopulateControlFlowGraph;
+import dataflow.ProcedureStore;
+import optimization.Optimizer;
+import optimization.SSAConversion;
+import parser.ParseException;
+import parser.SpigletParser;
+import parser.SpigletParserConstants;
+import parser.Token;
+import syntaxtree.Goal;
+import syntaxtree.Node;
+import syntaxtree.NodeListOptional;
+import syntaxtree.Procedure;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * One Spiglet to Kanga compilation: parse, optimize, build the control flow graph, allocate
+ * registers and translate. Every compilation gets its own parser, tree and graph, a compiler only
+ * holds its options, so a single instance may compile on many threads at once.
+ *
+ * Given a ProcedureStore, procedures unchanged since an earlier compilation through the same
+ * store skip liveness analysis and allocation, and reuse their Kanga when their labels are the
+ * same: only the procedures edited are analyzed again.
+ *
+ * Programs are read from a stream, a reader or a string, the Kanga program is returned or streamed
+ * to a caller supplied Appendable (a Writer, a StringBuilder), channel or file. Procedures are
+ * translated concurrently and streamed in program order.
+ *
+ * A streaming compiler holds a single procedure at a time instead of the whole program: it parses
+ * one, optimizes it, builds its graph, allocates, emits it and drops all of it before parsing the
+ * next, keeping only the global label table. Memory then depends on the largest procedure rather
+ * than on the program, at the cost of the optimizations reading other procedures.
+ */
+public final class Compiler {
+	private static final Charset charset = Charset.forName("UTF-8");
+
+	private final int level;				/* optimization level, 0 disables the optimizer */
+	private final Allocator allocator;
+	private final ProcedureStore store;		/* null to compile every procedure */
+	private final boolean streaming;
+
+	public Compiler(int level, Allocator allocator, ProcedureStore store, boolean streaming) {
+		this.level = level;
+		this.allocator = allocator;
+		this.store = store;
+		this.streaming = streaming;
+	}
+
+	public Compiler(int level, Allocator allocator, ProcedureStore store) {
+		this(level, allocator, store, false);
+	}
+
+	public Compiler(int level, Allocator allocator) {
+		this(level, allocator, null);
+	}
+
+	/**
+	 * a compiler with the default options of the command line: -O1 and Chaitin's allocator
+	 */
+	public Compiler() {
+		this(1, Allocator.Chaitin);
+	}
+
+	/**
+	 * @return the Kanga program translated from a Spiglet one
+	 */
+	public String compile(InputStream stream) throws Exception {
+		StringBuilder out = new StringBuilder();
+		compile(new SpigletParser(stream), gather(out));
+		return out.toString();
+	}
+
+	public String compile(Reader reader) throws Exception {
+		StringBuilder out = new StringBuilder();
+		compile(new SpigletParser(reader), gather(out));
+		return out.toString();
+	}
+
+	public String compile(CharSequence program) throws Exception {
+		return compile(new StringReader(program.toString()));
+	}
+
+	/**
+	 * appends the Kanga program translated from a Spiglet one, procedure by procedure as they are
+	 * translated. Output starts before the compilation is over, so a failure may leave a partial
+	 * program behind: the procedures of the windows written before it, and in streaming mode every
+	 * procedure preceding the error in the source. Callers wanting all or nothing compile into a
+	 * buffer or a File.
+	 */
+	public void compile(InputStream stream, Appendable out) throws Exception {
+		compile(new SpigletParser(stream), gather(out));
+	}
+
+	public void compile(Reader reader, Appendable out) throws Exception {
+		compile(new SpigletParser(reader), gather(out));
+	}
+
+	/**
+	 * writes the Kanga program to a channel, each run of procedures translated together in a
+	 * single gathering write. As with an Appendable, a failure may leave a partial program written.
+	 */
+	public void compile(InputStream stream, GatheringByteChannel out) throws Exception {
+		compile(new SpigletParser(stream), gather(out));
+	}
+
+	public void compile(CharSequence program, Appendable out) throws Exception {
+		compile(new StringReader(program.toString()), out);
+	}
+
+	/**
+	 * writes the Kanga program to a temporary file next to the target, moved over it once
+	 * complete: a failed compilation, an Error included, leaves the target as it was.
+	 */
+	public void compile(InputStream stream, File target) throws Exception {
+		File temporary = File.createTempFile(target.getName(), ".tmp", target.getAbsoluteFile().getParentFile());
+		FileChannel out = FileChannel.open(temporary.toPath(), StandardOpenOption.WRITE);
+		boolean done = false;
+		try {
+			compile(stream, out);
+			out.close();
+			Files.move(temporary.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			done = true;
+		} finally {
+			if(!done) {
+				out.close();
+				temporary.delete();
+			}
+		}
+	}
+
+	private void compile(SpigletParser parser, Gather out) throws Exception {
+		if(streaming) {
+			stream(parser, out);
+			return;
+		}
+		Goal tree = parser.Goal();
+		new Optimizer(level).optimize(tree);
+		/* the experimental ssa allocator colors the program renamed by an SSA round trip */
+		if(allocator == Allocator.Chordal)
+			new SSAConversion().run(Optimizer.populate(tree));
+		ControlFlowGraph cfg = new ControlFlowGraph(store);
+		tree.accept(new PopulateControlFlowGraph(cfg));
+		cfg.compute(allocator);
+		KangaTranslator.translate(cfg, tree, out);
+	}
+
+	/**
+	 * MAIN "END" ( Procedure )* EOF, parsed a production at a time. MAIN is compiled as a program
+	 * without procedures, each procedure as a program of its own sharing the graph's label table.
+	 */
+	private void stream(SpigletParser parser, Gather out) throws Exception {
+		Optimizer optimizer = new Optimizer(level, false);
+		ControlFlowGraph cfg = new ControlFlowGraph(store);
+		PopulateControlFlowGraph populate = new PopulateControlFlowGraph(cfg);
+
+		streamMain(parser, optimizer, cfg, populate, out);
+		while(parser.getToken(1).kind == SpigletParserConstants.IDENTIFIER) {
+			Procedure procedure = parser.Procedure();
+			optimizer.optimize(procedure);
+			if(allocator == Allocator.Chordal)
+				new SSAConversion().run(Optimizer.populate(procedure));
+			populate.populate(procedure);
+			emit(cfg, procedure, procedure.f0.f0.tokenImage, out);
+		}
+		expect(parser, SpigletParserConstants.EOF, "<EOF>");
+	}
+
+	/**
+	 * MAIN's tree only lives in this frame, so it is collectable while the procedures are compiled
+	 */
+	private void streamMain(SpigletParser parser, Optimizer optimizer, ControlFlowGraph cfg,
+			PopulateControlFlowGraph populate, Gather out) throws Exception {
+		expect(parser, SpigletParserConstants.MAIN, "MAIN");
+		Goal main = new Goal(parser.StmtList(), new NodeListOptional());
+		expect(parser, SpigletParserConstants.END, "END");
+		optimizer.optimize(main);
+		if(allocator == Allocator.Chordal)
+			new SSAConversion().run(Optimizer.populate(main));
+		main.accept(populate);
+		emit(cfg, main, "MAIN", out);
+	}
+
+	/**
+	 * allocates and translates the only procedure of the graph, then drops it
+	 */
+	private void emit(ControlFlowGraph cfg, Node node, String name, Gather out) throws Exception {
+		cfg.compute(allocator);
+		StringBuilder kanga = new StringBuilder();
+		new KangaTranslator(cfg, kanga).translate(node);
+		out.write(new String[] {kanga.toString()});
+		cfg.removeProcedure(cfg.getProcedure(name));
+	}
+
+	private static void expect(SpigletParser parser, int kind, String image) throws ParseException {
+		Token token = parser.getNextToken();
+		if(token.kind != kind)
+			throw new ParseException("Encountered \"" + token.image + "\" at line " + token.beginLine
+					+ ", column " + token.beginColumn + ".\nWas expecting:\n    \"" + image + "\" ...");
+	}
+
+	private static Gather gather(final Appendable out) {
+		return new Gather() {
+			@Override
+			public void write(String[] procedures) throws IOException {
+				for(String kanga : procedures)
+					out.append(kanga);
+			}
+		};
+	}
+
+	private static Gather gather(final GatheringByteChannel out) {
+		return new Gather() {
+			@Override
+			public void write(String[] procedures) throws IOException {
+				ByteBuffer[] buffers = new ByteBuffer[procedures.length];
+				long remaining = 0;
+				for(int i = 0; i < buffers.length; ++i) {
+					buffers[i] = ByteBuffer.wrap(procedures[i].getBytes(charset));
+					remaining += buffers[i].remaining();
+				}
+				/* a gathering write may return before every buffer is drained */
+				while(remaining > 0)
+					remaining -= out.write(buffers);
+			}
+		};
+	}
+
+	public int getLevel() {
+		return level;
+	}
+
+	public Allocator getAllocator() {
+		return allocator;
+	}
+
+	public boolean isStreaming() {
+		return streaming;
+	}
+}
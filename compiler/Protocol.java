@@ -0,0 +1,81 @@
+package compiler;
+
+import dataflow.ControlFlowGraph.Allocator;
+import exception.MyException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.charset.Charset;
+
+/**
+ * Compile server wire format, UTF-8 text with length prefixed payloads:
+ *
+ * request:  COMPILE <level> <ssa|chaitin> PATH <path>\n
+ *           COMPILE <level> <ssa|chaitin> SOURCE <bytes>\n<source>
+ * response: OK <bytes>\n<kanga>
+ *           ERROR <bytes>\n<diagnostics>
+ *
+ * PATH names a .spg file readable by the server, anything else is answered with an ERROR.
+ * A connection carries any number of requests, each answered before the next one is read. A
+ * SOURCE length that is not a number of at most maxPayload bytes is answered with an ERROR that
+ * ends the connection, the payload following it cannot be skipped.
+ */
+final class Protocol {
+	static final Charset charset = Charset.forName("UTF-8");
+	static final int maxPayload = 1 << 24;			/* bytes */
+
+	private Protocol() {
+	}
+
+	/**
+	 * @return a line without its terminator, null at the end of the stream
+	 */
+	static String readLine(InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		for(int c; (c = in.read()) != '\n'; ) {
+			if(c == -1)
+				return line.size() == 0 ? null : line.toString(charset.name());
+			line.write(c);
+		}
+		return line.toString(charset.name());
+	}
+
+	/**
+	 * @return the payload length of a request
+	 */
+	static int getLength(String field) throws ProtocolException {
+		if(!field.matches("\\d{1,9}") || Integer.parseInt(field) > maxPayload)
+			throw new ProtocolException("invalid payload length \'" + field + "\', at most " + maxPayload + " bytes expected.");
+		return Integer.parseInt(field);
+	}
+
+	static String readPayload(InputStream in, int length) throws IOException {
+		byte[] payload = new byte[length];
+		for(int read = 0, n; read < length; read += n)
+			if((n = in.read(payload, read, length - read)) == -1)
+				throw new IOException("connection closed after " + read + " of " + length + " bytes");
+		return new String(payload, charset);
+	}
+
+	static void write(OutputStream out, String header, String payload) throws IOException {
+		byte[] bytes = payload.getBytes(charset);
+		out.write((header + " " + bytes.length + "\n").getBytes(charset));
+		out.write(bytes);
+		out.flush();
+	}
+
+	static String getName(Allocator allocator) {
+		return allocator == Allocator.Chordal ? "ssa" : "chaitin";
+	}
+
+	static Allocator getAllocator(String name) throws MyException {
+		if(name.equals("ssa"))
+			return Allocator.Chordal;
+		if(name.equals("chaitin"))
+			return Allocator.Chaitin;
+		throw new MyException("invalid allocator \'" + name + "\', \'ssa\' or \'chaitin\' expected.");
+	}
+}
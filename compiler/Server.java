@@ -0,0 +1,124 @@
+package compiler;
+
+import dataflow.ProcedureStore;
+import exception.MyException;
+import parser.ParseException;
+import parser.TokenMgrError;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Compile daemon: a JVM kept warm between compilations, so that the parser, the dataflow
+ * analysis and the allocator run JIT compiled instead of interpreted. It listens on a loopback
+ * port only and serves each connection on a thread of a bounded pool, see Protocol for the
+ * requests it answers. Compilations share a ProcedureStore, so recompiling an edited program only
+ * analyzes the procedures that changed.
+ */
+public final class Server {
+	public static final int defaultPort = 4780;
+	private static final int storeCapacity = 1 << 16;		/* procedures */
+
+	private final int port;
+	private final ExecutorService pool;
+	private final ProcedureStore store;
+
+	public Server(int port, int jobs) {
+		this.port = port;
+		this.pool = Executors.newFixedThreadPool(jobs);
+		this.store = new ProcedureStore(storeCapacity);
+	}
+
+	/**
+	 * accepts connections until the process is killed
+	 */
+	public void serve() throws IOException {
+		ServerSocket socket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		try {
+			System.out.println("Listening on " + socket.getLocalSocketAddress() + " ...");
+			while(true) {
+				final Socket connection = socket.accept();
+				pool.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							handle(connection);
+						} catch (IOException e) {
+							System.err.println(e.getMessage());
+						} finally {
+							try {
+								connection.close();
+							} catch (IOException e) {
+								e.printStackTrace();
+							}
+						}
+					}
+				});
+			}
+		} finally {
+			socket.close();
+			pool.shutdown();
+		}
+	}
+
+	private void handle(Socket connection) throws IOException {
+		InputStream in = new BufferedInputStream(connection.getInputStream());
+		OutputStream out = new BufferedOutputStream(connection.getOutputStream());
+		for(String request; (request = Protocol.readLine(in)) != null; ) {
+			String[] fields = request.split(" ", 5);
+			String kanga;
+			try {
+				String source = null;
+				if(fields.length == 5 && fields[3].equals("SOURCE"))
+					source = Protocol.readPayload(in, Protocol.getLength(fields[4]));
+				kanga = compile(request, fields, source);
+			} catch (ProtocolException e) {
+				Protocol.write(out, "ERROR", e.getMessage());
+				return;
+			} catch (IOException e) {
+				Protocol.write(out, "ERROR", e.getMessage());
+				continue;
+			} catch (ParseException e) {
+				Protocol.write(out, "ERROR", e.getMessage());
+				continue;
+			} catch (MyException e) {
+				Protocol.write(out, "ERROR", e.getMessage());
+				continue;
+			} catch (TokenMgrError e) {		/* lexical errors are Errors, the connection outlives them */
+				Protocol.write(out, "ERROR", e.getMessage());
+				continue;
+			} catch (Exception e) {
+				StringWriter trace = new StringWriter();
+				e.printStackTrace(new PrintWriter(trace));
+				Protocol.write(out, "ERROR", trace.toString());
+				continue;
+			}
+			Protocol.write(out, "OK", kanga);
+		}
+	}
+
+	private String compile(String request, String[] fields, String source) throws Exception {
+		if(fields.length != 5 || !fields[0].equals("COMPILE") || !fields[1].matches("\\d"))
+			throw new MyException("invalid request \'" + request + "\'.");
+		Compiler compiler = new Compiler(Integer.parseInt(fields[1]), Protocol.getAllocator(fields[2]), store);
+		if(source != null)
+			return compiler.compile(source);
+		if(!fields[3].equals("PATH"))
+			throw new MyException("invalid request \'" + request + "\'.");
+		/* only Spiglet programs, diagnostics would otherwise quote any file the server can read */
+		File file = new File(fields[4]).getCanonicalFile();
+		if(!file.getName().endsWith(".spg") || !file.isFile())
+			throw new MyException("invalid file type, \'.spg\' expected.");
+		InputStream stream = new FileInputStream(file);
+		try {
+			return compiler.compile(stream);
+		} finally {
+			stream.close();
+		}
+	}
+}
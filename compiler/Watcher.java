@@ -0,0 +1,176 @@
+package compiler;
+
+import exception.MyException;
+import parser.ParseException;
+import parser.TokenMgrError;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watch mode: compiles every .spg file under some directories, then recompiles the ones that
+ * change, in the same JVM. Events are debounced, a rebuild starts once the directories have been
+ * quiet for a moment, so that an editor saving several files or writing one in steps triggers a
+ * single rebuild. Each directory is compiled with the Compiler it was added with, whose
+ * ProcedureStore keeps the procedures left untouched by an edit from being analyzed again.
+ */
+public final class Watcher {
+	private static final long quiet = 200;		/* milliseconds without events before a rebuild */
+
+	private final WatchService service;
+	private final ExecutorService pool;
+	private final Map<WatchKey, Path> directories;
+	private final Map<Path, Compiler> compilers;	/* per watched directory, subdirectories included */
+
+	public Watcher(int jobs) throws IOException {
+		this.service = FileSystems.getDefault().newWatchService();
+		this.pool = Executors.newFixedThreadPool(jobs);
+		this.directories = new HashMap<WatchKey, Path>();
+		this.compilers = new HashMap<Path, Compiler>();
+	}
+
+	/**
+	 * watches a directory and its subdirectories, compiling their files with a compiler
+	 */
+	public void add(File directory, Compiler compiler) throws IOException, MyException {
+		if(!directory.isDirectory())
+			throw new MyException("invalid directory \'" + directory + "\'.");
+		register(directory.toPath(), compiler);
+	}
+
+	/**
+	 * compiles everything once, then rebuilds on changes until the process is killed
+	 */
+	public void watch() throws IOException, InterruptedException {
+		try {
+			Set<Path> files = new TreeSet<Path>();
+			for(Path directory : compilers.keySet())
+				files.addAll(list(directory));
+			build(files);
+			System.out.println("Watching " + compilers.size() + " directories ...");
+			while(true) {
+				files = new TreeSet<Path>();
+				/* waits for a first event, then for the directories to settle */
+				for(WatchKey key = service.take(); key != null; key = service.poll(quiet, TimeUnit.MILLISECONDS))
+					collect(key, files);
+				build(files);
+			}
+		} finally {
+			service.close();
+			pool.shutdown();
+		}
+	}
+
+	private void collect(WatchKey key, Set<Path> files) throws IOException {
+		Path directory = directories.get(key);
+		for(WatchEvent<?> event : key.pollEvents()) {
+			/* events were lost, the whole directory may have changed */
+			if(event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				files.addAll(list(directory));
+				continue;
+			}
+			Path path = directory.resolve((Path) event.context());
+			if(event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+				register(path, compilers.get(directory));
+				files.addAll(list(path));
+			}
+			else if(isSource(path))
+				files.add(path);
+		}
+		if(!key.reset())
+			directories.remove(key);
+	}
+
+	/**
+	 * compiles files concurrently and reports them in order, files deleted meanwhile are skipped
+	 */
+	private void build(Set<Path> files) throws InterruptedException {
+		List<Path> paths = new ArrayList<Path>();
+		List<Future<Long>> results = new ArrayList<Future<Long>>();
+		for(final Path file : files) {
+			if(!Files.isRegularFile(file))
+				continue;
+			final Compiler compiler = compilers.get(file.getParent());
+			paths.add(file);
+			results.add(pool.submit(new Callable<Long>() {
+				@Override
+				public Long call() throws Exception {
+					long start = System.nanoTime();
+					compile(file, compiler);
+					return (System.nanoTime() - start) / 1000000;
+				}
+			}));
+		}
+		for(int i = 0; i < paths.size(); ++i) {
+			try {
+				try {
+					long time = results.get(i).get();
+					System.out.println("Compiled \'" + paths.get(i) + "\' in " + time + " ms.");
+				} catch (ExecutionException e) {
+					throw e.getCause();
+				}
+			} catch (IOException e) {
+				System.err.println(e.getMessage());
+			} catch (ParseException e) {
+				System.err.println(paths.get(i) + ": " + e.getMessage());
+			} catch (TokenMgrError e) {
+				System.err.println(paths.get(i) + ": " + e.getMessage());
+			} catch (MyException e) {
+				System.err.println(paths.get(i) + ": " + e.getMessage());
+			} catch (Throwable e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private static void compile(Path file, Compiler compiler) throws Exception {
+		String name = file.toString();
+		File target = new File(name.substring(0, name.length() - 4) + ".kg");
+		InputStream stream = Files.newInputStream(file);
+		try {
+			compiler.compile(stream, target);
+		} finally {
+			stream.close();
+		}
+	}
+
+	private void register(Path root, final Compiler compiler) throws IOException {
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes) throws IOException {
+				WatchKey key = directory.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+						StandardWatchEventKinds.ENTRY_MODIFY);
+				directories.put(key, directory);
+				compilers.put(directory, compiler);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	private static List<Path> list(Path directory) throws IOException {
+		List<Path> files = new ArrayList<Path>();
+		DirectoryStream<Path> stream = Files.newDirectoryStream(directory);
+		try {
+			for(Path path : stream)
+				if(isSource(path))
+					files.add(path);
+		} finally {
+			stream.close();
+		}
+		return files;
+	}
+
+	private static boolean isSource(Path path) {
+		return path.toString().endsWith(".spg") && Files.isRegularFile(path);
+	}
+}
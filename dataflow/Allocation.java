@@ -0,0 +1,41 @@
+package dataflow;
+
+import java.util.*;
+
+/**
+ * What register allocation leaves on a procedure for the translator: where each temp lives, the
+ * frame layout, and for each statement, in block order, whether it is live and which registers
+ * its call saves. Restoring it onto a procedure built from the same text replaces the liveness
+ * analysis, the interference graph and the coloring.
+ */
+final class Allocation {
+	final Map<String, String> registerMap;
+	final Map<String, Integer> stackMap;
+	final int spillCount;
+	final Set<String> calleeSaved;
+	final Map<String, Integer> calleeStackOffset;
+	final Map<String, Integer> callerStackOffset;
+	final boolean[] dead;						/* per statement */
+	final List<Set<String>> callerSaved;		/* per statement, null without a call */
+
+	Allocation(Map<String, String> registerMap, Map<String, Integer> stackMap, int spillCount,
+			   Set<String> calleeSaved, Map<String, Integer> calleeStackOffset,
+			   Map<String, Integer> callerStackOffset, List<BasicBlock> blocks) {
+		this.registerMap = new HashMap<String, String>(registerMap);
+		this.stackMap = new HashMap<String, Integer>(stackMap);
+		this.spillCount = spillCount;
+		this.calleeSaved = new HashSet<String>(calleeSaved);
+		this.calleeStackOffset = new HashMap<String, Integer>(calleeStackOffset);
+		this.callerStackOffset = new HashMap<String, Integer>(callerStackOffset);
+		List<Statement> statements = new ArrayList<Statement>();
+		for(BasicBlock block : blocks)
+			statements.addAll(block.statements);
+		this.dead = new boolean[statements.size()];
+		this.callerSaved = new ArrayList<Set<String>>();
+		for(int i = 0; i < dead.length; ++i) {
+			Statement statement = statements.get(i);
+			dead[i] = statement.getState() != Statement.State.Live;
+			callerSaved.add(statement.getCallerSaved() != null ? new HashSet<String>(statement.getCallerSaved()) : null);
+		}
+	}
+}
@@ -9,6 +9,7 @@ import static sets.Sets.*;
 
 public final class BasicBlock {
 	public List<BasicBlock> successors;
+	public List<BasicBlock> predecessors;
 	public List<Statement> statements;
 	public Set<String> out;
 	public Set<String> in;
@@ -17,6 +18,7 @@ public final class BasicBlock {
 
 	public BasicBlock(int id) {
 		this.successors = new ArrayList<BasicBlock>();
+		this.predecessors = new ArrayList<BasicBlock>();
 		this.statements = new ArrayList<Statement>();
 		this.out = new HashSet<String>();
 		this.in = new HashSet<String>();
@@ -34,23 +36,29 @@ public final class BasicBlock {
 
 	public void addSuccessor(BasicBlock successor){
 		successors.add(successor);
+		successor.predecessors.add(this);
+	}
+
+	public int getId() {
+		return id;
 	}
 
 	public boolean populateStatementSets(){
 		boolean changed = false;
 		for(int i = statements.size()-1; i > -1; --i){
 			Statement statement = statements.get(i);
-			/* in[i] = (out[i] except def[i]) union use[i] */
-			Set<String> inCopy = new HashSet<String>(statement.in);
-			statement.in = union(difference(statement.out, statement.def), statement.use);
-			changed = changed || differ(statement.in, inCopy);
-			maxStatementDegree = statement.in.size() > maxStatementDegree ? statement.in.size() : maxStatementDegree;
-			/* out[i] = in[successor(i)] for all successors of i */
+			/* out[i] = in[successor(i)] for all successors of i, taken before in[i] so that a sweep
+			 * carries liveness through the whole block */
 			if(i+1 != statements.size()){
 				Set<String> outCopy = new HashSet<String>(statement.out);
 				statement.out = statements.get(i+1).in;
 				changed = changed || differ(statement.out, outCopy);
 			}
+			/* in[i] = (out[i] except def[i]) union use[i] */
+			Set<String> inCopy = new HashSet<String>(statement.in);
+			statement.in = union(difference(statement.out, statement.def), statement.use);
+			changed = changed || differ(statement.in, inCopy);
+			maxStatementDegree = statement.in.size() > maxStatementDegree ? statement.in.size() : maxStatementDegree;
 		}
 		return changed;
 	}
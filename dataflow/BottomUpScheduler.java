@@ -0,0 +1,104 @@
+package dataflow;
+
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs a task over the strongly connected components of a call graph, bottom-up: a component
+ * starts once every component it calls into is done. Components independent of each other run
+ * concurrently on the common work-stealing pool.
+ *
+ * A task only touches its own component and reads the ones below it, which are complete.
+ */
+public final class BottomUpScheduler {
+	public interface Task {
+		void run(Set<Procedure> component) throws Exception;
+	}
+
+	private List<Set<Procedure>> components;
+	private Map<Set<Procedure>, Set<Set<Procedure>>> callers;		/* components calling into each component */
+	private Map<Set<Procedure>, Integer> callees;					/* components each component calls into */
+	private Map<Set<Procedure>, AtomicInteger> pending;				/* callees not done yet, in the current run */
+
+	public BottomUpScheduler(CallGraph graph) {
+		Map<Procedure, Set<Procedure>> owner = new HashMap<Procedure, Set<Procedure>>();
+		this.components = graph.getComponents();
+		this.callers = new HashMap<Set<Procedure>, Set<Set<Procedure>>>();
+		this.callees = new HashMap<Set<Procedure>, Integer>();
+		for(Set<Procedure> component : components) {
+			callers.put(component, new HashSet<Set<Procedure>>());
+			for(Procedure procedure : component)
+				owner.put(procedure, component);
+		}
+		for(Set<Procedure> component : components) {
+			Set<Set<Procedure>> callees = new HashSet<Set<Procedure>>();
+			for(Procedure procedure : component)
+				for(Procedure callee : graph.getCallees(procedure))
+					if(owner.get(callee) != component)
+						callees.add(owner.get(callee));
+			for(Set<Procedure> callee : callees)
+				callers.get(callee).add(component);
+			this.callees.put(component, callees.size());
+		}
+	}
+
+	/**
+	 * runs the task on every component and waits for all of them, rethrowing the first failure.
+	 * Components above a failed one are not started.
+	 */
+	public void run(final Task task) throws Exception {
+		pending = new HashMap<Set<Procedure>, AtomicInteger>();
+		for(Set<Procedure> component : components)
+			pending.put(component, new AtomicInteger(callees.get(component)));
+		final CountDownLatch done = new CountDownLatch(components.size());
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		/* leaves are picked before any of them runs and releases its callers */
+		List<Set<Procedure>> leaves = new ArrayList<Set<Procedure>>();
+		for(Set<Procedure> component : components)
+			if(pending.get(component).get() == 0)
+				leaves.add(component);
+		for(Set<Procedure> leaf : leaves)
+			submit(leaf, task, done, failure);
+		/* the caller may itself be a worker of the pool, which then gets a spare thread meanwhile */
+		ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+			@Override
+			public boolean block() throws InterruptedException {
+				done.await();
+				return true;
+			}
+
+			@Override
+			public boolean isReleasable() {
+				return done.getCount() == 0;
+			}
+		});
+		if(failure.get() instanceof Error)
+			throw (Error) failure.get();
+		if(failure.get() != null)
+			throw (Exception) failure.get();
+	}
+
+	private void submit(final Set<Procedure> component, final Task task,
+						final CountDownLatch done, final AtomicReference<Throwable> failure) {
+		ForkJoinPool.commonPool().execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if(failure.get() == null)
+						task.run(component);
+				} catch (Throwable e) {
+					failure.compareAndSet(null, e);
+				} finally {
+					/* callers are released even after a failure, so that the latch reaches zero */
+					for(Set<Procedure> caller : callers.get(component))
+						if(pending.get(caller).decrementAndGet() == 0)
+							submit(caller, task, done, failure);
+					done.countDown();
+				}
+			}
+		});
+	}
+}
@@ -0,0 +1,185 @@
+package dataflow;
+
+import syntaxtree.*;
+import visitor.DepthFirstVisitor;
+
+import java.util.*;
+
+/**
+ * Call graph of a program, built from the labels its expressions use.
+ *
+ * A direct CALL of a label is an edge to that procedure. A CALL through a temp may reach any
+ * procedure whose label is taken as a value (stored in a vtable), so it is an edge to all of them.
+ * Every label a procedure uses is also a reference, whether it ends up called or not.
+ *
+ * Strongly connected components are found with Tarjan's algorithm, which completes a component
+ * only after every component it calls into, so they come out bottom-up.
+ */
+public final class CallGraph {
+	private Procedure main;
+	private Map<String, Procedure> procedures;
+	private Map<Procedure, Set<Procedure>> callees;
+	private Map<Procedure, Set<Procedure>> references;			/* procedures whose label is used */
+	private Set<Procedure> taken;								/* procedures whose label is used as a value */
+	private List<Set<Procedure>> components;					/* callees first, computed lazily */
+
+	public CallGraph(ControlFlowGraph cfg) throws Exception {
+		this.procedures = new LinkedHashMap<String, Procedure>();
+		this.callees = new LinkedHashMap<Procedure, Set<Procedure>>();
+		this.references = new LinkedHashMap<Procedure, Set<Procedure>>();
+		this.taken = new LinkedHashSet<Procedure>();
+		for(Procedure procedure : cfg.getProcedures()) {
+			if(main == null)
+				main = procedure;
+			procedures.put(procedure.getName(), procedure);
+		}
+
+		Set<Procedure> indirect = new HashSet<Procedure>();		/* procedures making calls through temps */
+		for(Procedure procedure : procedures.values()) {
+			LabelCollector collector = new LabelCollector();
+			for(BasicBlock block : procedure.getBlocks())
+				for(Statement statement : block.statements) {
+					Node node = statement.getNode();
+					if(node instanceof StmtExp)
+						((StmtExp) node).f3.accept(collector);
+					else
+						node.accept(collector);
+				}
+			callees.put(procedure, get(collector.called));
+			references.put(procedure, get(collector.called));
+			references.get(procedure).addAll(get(collector.taken));
+			taken.addAll(get(collector.taken));
+			if(collector.indirect)
+				indirect.add(procedure);
+		}
+		for(Procedure procedure : indirect)
+			callees.get(procedure).addAll(taken);
+	}
+
+	public Procedure getMain() {
+		return main;
+	}
+
+	/**
+	 * @return the procedures a procedure may call, directly or through a vtable
+	 */
+	public Set<Procedure> getCallees(Procedure procedure) {
+		return callees.get(procedure);
+	}
+
+	/**
+	 * @return the procedures whose label a procedure uses
+	 */
+	public Set<Procedure> getReferences(Procedure procedure) {
+		return references.get(procedure);
+	}
+
+	/**
+	 * @return the procedures reachable from MAIN through label references, MAIN included
+	 */
+	public Set<Procedure> getReachable() {
+		Set<Procedure> reachable = new LinkedHashSet<Procedure>();
+		Deque<Procedure> worklist = new ArrayDeque<Procedure>();
+		reachable.add(main);
+		worklist.push(main);
+		while(!worklist.isEmpty())
+			for(Procedure reference : references.get(worklist.pop()))
+				if(reachable.add(reference))
+					worklist.push(reference);
+		return reachable;
+	}
+
+	/**
+	 * @return the strongly connected components of the call graph, each after the ones it calls into
+	 */
+	public List<Set<Procedure>> getComponents() {
+		if(components == null) {
+			components = new ArrayList<Set<Procedure>>();
+			Map<Procedure, Integer> index = new HashMap<Procedure, Integer>(), low = new HashMap<Procedure, Integer>();
+			Stack<Procedure> stack = new Stack<Procedure>();
+			for(Procedure procedure : procedures.values())
+				if(!index.containsKey(procedure))
+					connect(procedure, index, low, stack);
+		}
+		return components;
+	}
+
+	/**
+	 * iterative Tarjan search from a root, keeping a successor iterator per open procedure
+	 */
+	private void connect(Procedure root, Map<Procedure, Integer> index, Map<Procedure, Integer> low, Stack<Procedure> stack) {
+		Stack<Procedure> path = new Stack<Procedure>();
+		Stack<Iterator<Procedure>> successors = new Stack<Iterator<Procedure>>();
+		Set<Procedure> open = new HashSet<Procedure>();			/* procedures on the stack */
+		visit(root, index, low, stack, open);
+		path.push(root);
+		successors.push(callees.get(root).iterator());
+		while(!path.isEmpty()) {
+			Procedure procedure = path.peek();
+			if(successors.peek().hasNext()) {
+				Procedure callee = successors.peek().next();
+				if(!index.containsKey(callee)) {
+					visit(callee, index, low, stack, open);
+					path.push(callee);
+					successors.push(callees.get(callee).iterator());
+				}
+				else if(open.contains(callee))
+					low.put(procedure, Math.min(low.get(procedure), index.get(callee)));
+				continue;
+			}
+			path.pop();
+			successors.pop();
+			if(!path.isEmpty())
+				low.put(path.peek(), Math.min(low.get(path.peek()), low.get(procedure)));
+			if(!low.get(procedure).equals(index.get(procedure)))
+				continue;
+			Set<Procedure> component = new LinkedHashSet<Procedure>();
+			Procedure member;
+			do {
+				member = stack.pop();
+				open.remove(member);
+				component.add(member);
+			} while(member != procedure);
+			components.add(component);
+		}
+	}
+
+	private static void visit(Procedure procedure, Map<Procedure, Integer> index, Map<Procedure, Integer> low,
+							  Stack<Procedure> stack, Set<Procedure> open) {
+		index.put(procedure, index.size());
+		low.put(procedure, index.get(procedure));
+		stack.push(procedure);
+		open.add(procedure);
+	}
+
+	/**
+	 * labels not naming a procedure are left out, they fail at run time anyway
+	 */
+	private Set<Procedure> get(Set<String> labels) {
+		Set<Procedure> result = new LinkedHashSet<Procedure>();
+		for(String label : labels)
+			if(procedures.containsKey(label))
+				result.add(procedures.get(label));
+		return result;
+	}
+
+	private static final class LabelCollector extends DepthFirstVisitor {
+		private Set<String> called = new LinkedHashSet<String>();
+		private Set<String> taken = new LinkedHashSet<String>();
+		private boolean indirect = false;
+
+		@Override
+		public void visit(Call n) throws Exception {
+			if(n.f1.f0.choice instanceof Label)
+				called.add(((Label) n.f1.f0.choice).f0.tokenImage);
+			else
+				indirect = true;
+		}
+
+		@Override
+		public void visit(SimpleExp n) throws Exception {
+			if(n.f0.choice instanceof Label)
+				taken.add(((Label) n.f0.choice).f0.tokenImage);
+		}
+	}
+}
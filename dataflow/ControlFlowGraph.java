@@ -1,8 +1,21 @@
 package dataflow;
 
-import java.util.HashMap;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import syntaxtree.Goal;
+import syntaxtree.Label;
+import syntaxtree.Node;
+import syntaxtree.NodeOptional;
+import syntaxtree.NodeSequence;
+import syntaxtree.NodeToken;
+import visitor.DepthFirstVisitor;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -17,11 +30,22 @@ public final class ControlFlowGraph {
 	private Map<String, Procedure> procedures;
 	private Map<String, String> labels;			/* global label map */
 	private int labelCount;
+	private final ProcedureStore store;				/* null unless compiling incrementally */
+	private Map<Procedure, String> fingerprints;
 
 	public ControlFlowGraph() {
+		this(null);
+	}
+
+	/**
+	 * a graph whose procedures reuse the results the store holds for them, and add their own
+	 */
+	public ControlFlowGraph(ProcedureStore store) {
 		this.procedures = new LinkedHashMap<String, Procedure>();
 		this.labels = new HashMap<String, String>();
 		this.labelCount = 0;
+		this.store = store;
+		this.fingerprints = new ConcurrentHashMap<Procedure, String>();
 	}
 
 	public boolean containsGlobalLabel(String label) {
@@ -42,31 +66,160 @@ public final class ControlFlowGraph {
 		return procedures.get(procedure);
 	}
 
-	public void compute() {
+	/**
+	 * drops a procedure once translated, its global labels are kept
+	 */
+	public void removeProcedure(Procedure procedure) {
+		procedures.remove(procedure.getName());
+		fingerprints.remove(procedure);
+	}
+
+	public Collection<Procedure> getProcedures() {
+		return procedures.values();
+	}
+
+	public void compute() throws Exception {
+		compute(Allocator.Chaitin);
+	}
+
+	/**
+	 * procedures are independent from here on, each one runs the whole pipeline as a task of its
+	 * own on the common pool. The largest start first, so that none of them is left running alone
+	 * at the end. The output order stays the one of the procedures map.
+	 */
+	public void compute(final Allocator allocator) throws Exception {
+		fingerprints.clear();
+		List<Procedure> order = new ArrayList<Procedure>(procedures.values());
+		Collections.sort(order, new Comparator<Procedure>() {
+			@Override
+			public int compare(Procedure a, Procedure b) {
+				return size(b) - size(a);
+			}
+		});
+		List<ForkJoinTask<Void>> tasks = new ArrayList<ForkJoinTask<Void>>();
+		for(final Procedure procedure : order)
+			tasks.add(ForkJoinPool.commonPool().submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					if(store == null) {
+						compute(procedure, allocator);
+						return null;
+					}
+					String fingerprint = getFingerprint(procedure, allocator);
+					fingerprints.put(procedure, fingerprint);
+					Allocation allocation = store.getAllocation(fingerprint);
+					if(allocation != null) {
+						logger.log(Level.INFO, procedure.getName() + ": unchanged, allocation reused");
+						procedure.setAllocation(allocation);
+						return null;
+					}
+					compute(procedure, allocator);
+					store.putAllocation(fingerprint, procedure.getAllocation());
+					return null;
+				}
+			}));
+		for(ForkJoinTask<Void> task : tasks)
+			try {
+				task.get();
+			} catch (ExecutionException e) {
+				if(e.getCause() instanceof Exception)
+					throw (Exception) e.getCause();
+				throw (Error) e.getCause();
+			}
+
+		logger.log(Level.INFO, toString());
+	}
 
-		logger.log(Level.INFO, "Analyzing variable liveness... ");
-		for(Procedure procedure : procedures.values())
-			procedure.analyzeLiveness();
+	private static void compute(Procedure procedure, Allocator allocator) {
+		logger.log(Level.INFO, procedure.getName() + ": analyzing variable liveness... ");
+		procedure.analyzeLiveness();
 
-		logger.log(Level.INFO, "Constructing interference graph... ");
-		for(Procedure procedure : procedures.values())
-			procedure.connectComponents();
+		logger.log(Level.INFO, procedure.getName() + ": constructing interference graph... ");
+		procedure.connectComponents();
 
-		logger.log(Level.INFO, "Computing spill cost... ");
-		for(Procedure procedure : procedures.values())
-			procedure.computeSpillCost();
+		logger.log(Level.INFO, procedure.getName() + ": computing spill cost... ");
+		procedure.computeSpillCost();
 
-		logger.log(Level.INFO, "Running Chaitin's algorithm... ");
-		for(Procedure procedure : procedures.values())
+		if(allocator == Allocator.Chordal) {
+			logger.log(Level.INFO, procedure.getName() + ": coloring in dominance order... ");
+			procedure.colorChordal();
+		} else {
+			logger.log(Level.INFO, procedure.getName() + ": running Chaitin's algorithm... ");
 			procedure.colorComponents();
+		}
+
+		logger.log(Level.INFO, procedure.getName() + ": populating callee and caller saved register sets... ");
+		procedure.populateSpillSets();
+	}
 
-		logger.log(Level.INFO, "Populating Callee and Caller saved register sets... ");
-		for(Procedure procedure : procedures.values())
-			procedure.populateSpillSets();
+	public boolean isIncremental() {
+		return store != null;
+	}
 
-		logger.log(Level.INFO, toString());
+	/**
+	 * @return the Kanga emitted for a procedure by an earlier compilation, null if it has to be
+	 * translated
+	 */
+	public String getKanga(Procedure procedure) {
+		String fingerprint = fingerprints.get(procedure);
+		return fingerprint != null ? store.getKanga(fingerprint, getLabels(procedure)) : null;
+	}
+
+	/**
+	 * records the Kanga translated for a procedure, for later compilations
+	 */
+	public void putKanga(Procedure procedure, String kanga) {
+		String fingerprint = fingerprints.get(procedure);
+		if(fingerprint != null)
+			store.putKanga(fingerprint, getLabels(procedure), kanga);
+	}
+
+	/**
+	 * @return the global labels of a procedure's own labels, in order
+	 */
+	private String getLabels(Procedure procedure) {
+		StringBuilder labels = new StringBuilder();
+		for(Node entry : procedure.getBody().nodes) {
+			NodeOptional label = (NodeOptional) ((NodeSequence) entry).elementAt(0);
+			if(label.present())
+				labels.append(getGlobalLabel(procedure.getName() + "_" + ((Label) label.node).f0.tokenImage)).append(' ');
+		}
+		return labels.toString();
+	}
+
+	/**
+	 * @return the SHA-256 of the allocator and of the procedure's tokens, MAIN's statements for the Goal
+	 */
+	private static String getFingerprint(Procedure procedure, Allocator allocator) throws Exception {
+		final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+		final Charset charset = Charset.forName("UTF-8");
+		DepthFirstVisitor tokens = new DepthFirstVisitor() {
+			@Override
+			public void visit(NodeToken n) throws Exception {
+				digest.update(n.tokenImage.getBytes(charset));
+				digest.update((byte) ' ');
+			}
+		};
+		digest.update((allocator + "\n").getBytes(charset));
+		Node node = procedure.getNode();
+		if(node instanceof Goal) {
+			((Goal) node).f0.accept(tokens);
+			((Goal) node).f1.accept(tokens);
+		}
+		else
+			node.accept(tokens);
+		StringBuilder fingerprint = new StringBuilder();
+		for(byte b : digest.digest())
+			fingerprint.append(String.format("%02x", b));
+		return fingerprint.toString();
 	}
 
+	private static int size(Procedure procedure) {
+		int size = 0;
+		for(BasicBlock block : procedure.getBlocks())
+			size += block.statements.size();
+		return size;
+	}
 
 	@Override
 	public String toString() {
@@ -75,4 +228,11 @@ public final class ControlFlowGraph {
 			message.append(entry.getValue()).append('\n');
 		return message.toString();
 	}
+
+	/**
+	 * Chaitin's graph coloring is the default, Chordal the experimental SSA based allocator
+	 */
+	public static enum Allocator {
+		Chaitin, Chordal
+	}
 }
@@ -0,0 +1,187 @@
+package dataflow;
+
+import java.util.*;
+
+/**
+ * Dominator tree of a procedure (Cooper, Harvey and Kennedy, "A Simple, Fast Dominance Algorithm").
+ *
+ * Blocks unreachable from the entry block are left out of the tree.
+ */
+public final class DominatorTree {
+	private List<BasicBlock> order;								/* reverse postorder of reachable blocks */
+	private Map<BasicBlock, Integer> index;						/* block to reverse postorder index mapping */
+	private Map<BasicBlock, BasicBlock> idom;					/* immediate dominators, entry maps to itself */
+	private Map<BasicBlock, List<BasicBlock>> children;
+	private Map<BasicBlock, Set<BasicBlock>> frontier;			/* dominance frontiers, computed lazily */
+	private BasicBlock entry;
+
+	public DominatorTree(Procedure procedure) {
+		this.entry = procedure.getBlock(0);
+		this.order = new ArrayList<BasicBlock>();
+		this.index = new HashMap<BasicBlock, Integer>();
+		this.idom = new HashMap<BasicBlock, BasicBlock>();
+		this.children = new HashMap<BasicBlock, List<BasicBlock>>();
+
+		postorder(entry, new HashSet<BasicBlock>());
+		Collections.reverse(order);
+		for(int i = 0; i < order.size(); ++i)
+			index.put(order.get(i), i);
+
+		idom.put(entry, entry);
+		for(boolean changed = true; changed; ) {
+			changed = false;
+			for(BasicBlock block : order) {
+				if(block == entry)
+					continue;
+				BasicBlock dominator = null;
+				for(BasicBlock predecessor : block.predecessors)
+					if(idom.containsKey(predecessor))
+						dominator = dominator == null ? predecessor : intersect(predecessor, dominator);
+				if(dominator != idom.get(block)) {
+					idom.put(block, dominator);
+					changed = true;
+				}
+			}
+		}
+
+		for(BasicBlock block : order)
+			children.put(block, new ArrayList<BasicBlock>());
+		for(BasicBlock block : order)
+			if(block != entry)
+				children.get(idom.get(block)).add(block);
+	}
+
+	/**
+	 * iterative depth first search, recursion would overflow on large procedures
+	 */
+	private void postorder(BasicBlock root, Set<BasicBlock> visited) {
+		Stack<BasicBlock> blocks = new Stack<BasicBlock>();
+		Stack<Iterator<BasicBlock>> successors = new Stack<Iterator<BasicBlock>>();
+		visited.add(root);
+		blocks.push(root);
+		successors.push(root.successors.iterator());
+		while(!blocks.isEmpty()) {
+			if(successors.peek().hasNext()) {
+				BasicBlock successor = successors.peek().next();
+				if(visited.add(successor)) {
+					blocks.push(successor);
+					successors.push(successor.successors.iterator());
+				}
+				continue;
+			}
+			order.add(blocks.pop());
+			successors.pop();
+		}
+	}
+
+	private BasicBlock intersect(BasicBlock a, BasicBlock b) {
+		while(a != b) {
+			while(index.get(a) > index.get(b))
+				a = idom.get(a);
+			while(index.get(b) > index.get(a))
+				b = idom.get(b);
+		}
+		return a;
+	}
+
+	public BasicBlock getEntry() {
+		return entry;
+	}
+
+	public boolean isReachable(BasicBlock block) {
+		return index.containsKey(block);
+	}
+
+	/**
+	 * @return the immediate dominator of a block, null for the entry block
+	 */
+	public BasicBlock getImmediateDominator(BasicBlock block) {
+		return block == entry ? null : idom.get(block);
+	}
+
+	public List<BasicBlock> getChildren(BasicBlock block) {
+		return children.get(block);
+	}
+
+	public boolean dominates(BasicBlock a, BasicBlock b) {
+		if(!isReachable(a) || !isReachable(b))
+			return false;
+		for(BasicBlock block = b; ; block = idom.get(block)) {
+			if(block == a)
+				return true;
+			if(block == entry)
+				return false;
+		}
+	}
+
+	/**
+	 * @return reachable blocks in reverse postorder, every block comes after its dominators
+	 */
+	public List<BasicBlock> getReversePostorder() {
+		return order;
+	}
+
+	/**
+	 * @return reachable blocks in dominator tree preorder
+	 */
+	public List<BasicBlock> getPreorder() {
+		List<BasicBlock> preorder = new ArrayList<BasicBlock>();
+		Stack<BasicBlock> stack = new Stack<BasicBlock>();
+		stack.push(entry);
+		while(!stack.isEmpty()) {
+			BasicBlock block = stack.pop();
+			preorder.add(block);
+			List<BasicBlock> successors = children.get(block);
+			for(int i = successors.size() - 1; i >= 0; --i)
+				stack.push(successors.get(i));
+		}
+		return preorder;
+	}
+
+	/**
+	 * dominance frontiers: DF(b) = { y | b dominates a predecessor of y, b does not strictly dominate y }
+	 */
+	public Set<BasicBlock> getFrontier(BasicBlock block) {
+		if(frontier == null) {
+			frontier = new HashMap<BasicBlock, Set<BasicBlock>>();
+			for(BasicBlock b : order)
+				frontier.put(b, new LinkedHashSet<BasicBlock>());
+			for(BasicBlock b : order) {
+				if(b.predecessors.size() < 2)
+					continue;
+				for(BasicBlock predecessor : b.predecessors)
+					for(BasicBlock runner = predecessor; isReachable(runner) && runner != idom.get(b); runner = idom.get(runner)) {
+						frontier.get(runner).add(b);
+						if(runner == entry)
+							break;
+					}
+			}
+		}
+		return frontier.get(block);
+	}
+
+	/**
+	 * iterated dominance frontier of a set of blocks, the phi placement points of a variable defined in them
+	 */
+	public Set<BasicBlock> getIteratedFrontier(Collection<BasicBlock> blocks) {
+		Set<BasicBlock> result = new LinkedHashSet<BasicBlock>();
+		Deque<BasicBlock> worklist = new ArrayDeque<BasicBlock>(blocks);
+		while(!worklist.isEmpty())
+			for(BasicBlock block : getFrontier(worklist.poll()))
+				if(result.add(block))
+					worklist.add(block);
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder message = new StringBuilder();
+		for(BasicBlock block : order)
+			message.append("Basic block id: ")
+				   .append(block.getId())
+				   .append(" idom: ")
+				   .append(block == entry ? "-" : Integer.toString(idom.get(block).getId()))
+				   .append("\n");
+		return message.toString();
+	}
+}
@@ -3,28 +3,56 @@ package dataflow;
 import syntaxtree.*;
 import visitor.GJNoArguDepthFirst;
 
-import java.util.Enumeration;
-import java.util.Stack;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 import static dataflow.Statement.State;
 import static dataflow.Statement.Type;
 
+/**
+ * Translates the program procedure by procedure into an Appendable: the lines of a procedure are
+ * gathered, then handed over once it is complete, so that a Writer receives the program as it is
+ * translated and at most one procedure is held in memory.
+ *
+ * Instructions go through the typed methods of KangaBuffer, straight into its reused builder:
+ * registers, offsets and labels are appended as they are, without building a line, a vararg array
+ * or an intermediate expression string per instruction.
+ *
+ * translate(cfg, goal, gather) translates the procedures concurrently instead.
+ */
 public class KangaTranslator extends GJNoArguDepthFirst<String> {
 	private final ControlFlowGraph cfg;
 	private final KangaBuffer b;
+	private final StringBuilder program;		/* the output when none is given, returned by visit(Goal) */
 	private Procedure procedure;
 	private BasicBlock block;
 	private Statement statement;
 	private int blockCount;
 	private int statementCount;
-	private Stack<String> vregs;
+	private int spilled;					/* v registers taken by the current statement */
 	private boolean procedureLabel = false;
+	private Map<String, String> temps;		/* token to TEMP name, built once per temp */
+	private Map<String, String> labels;		/* current procedure label to global label */
+
+	private static final String[] vregisters = {"v0", "v1"};
+	private static final String[] aregisters = {"a0", "a1", "a2", "a3"};
 
 	public KangaTranslator(ControlFlowGraph cfg) {
-		this.b = new KangaBuffer();
+		this(cfg, new StringBuilder());
+	}
+
+	public KangaTranslator(ControlFlowGraph cfg, Appendable out) {
+		this.b = new KangaBuffer(out);
+		this.program = out instanceof StringBuilder ? (StringBuilder) out : null;
 		this.cfg = cfg;
 		this.blockCount = 0;
 		this.statementCount = 0;
+		this.temps = new HashMap<String, String>();
+		this.labels = new HashMap<String, String>();
 	}
 
 	private String getRegister(String vertex) throws Exception {
@@ -32,15 +60,29 @@ public class KangaTranslator extends GJNoArguDepthFirst<String> {
 			throw new Exception("invalid state " + vertex + " " + procedure.where(vertex));
 		if(procedure.mappedInRegister(vertex))
 			return procedure.getRegister(vertex);
-		String register = vregs.pop();
-		b.append("ALOAD", register, "SPILLEDARG", procedure.getStackOffset(vertex));
+		String register = vregisters[spilled++];
+		b.aload(register, procedure.getStackOffset(vertex));
 		return register;
 	}
 
 	private String getLabel(String label) throws Exception {
+		String global = labels.get(label);
+		if(global != null)
+			return global;
 		if(!cfg.containsGlobalLabel(procedure.getName() + "_" + label))
 			throw new Exception("invalid state " + procedure.getName() + "_" + label);
-		return cfg.getGlobalLabel(procedure.getName() + "_" + label);
+		global = cfg.getGlobalLabel(procedure.getName() + "_" + label);
+		labels.put(label, global);
+		return global;
+	}
+
+	/**
+	 * starts a procedure: counters and the label cache are reset, the first block is entered
+	 */
+	private void enter(String name) {
+		blockCount = 0;
+		procedure = cfg.getProcedure(name);
+		labels.clear();
 	}
 
 	/**
@@ -69,9 +111,8 @@ public class KangaTranslator extends GJNoArguDepthFirst<String> {
 	@Override
 	public String visit(NodeOptional n) throws Exception {
 		if(n.present() && n.node instanceof Label) {
-			String label = cfg.getGlobalLabel(procedure.getName() + "_" + n.node.accept(this));
-			b.append(label);
-			if(statement != null && statement.getType() != Type.JumpStmt) {
+			b.label(getLabel(((Label) n.node).f0.tokenImage));
+			if(statement != null && statement.getType() != Type.JumpStmt && statement.getType() != Type.CJumpStmt) {
 				block = procedure.getBlock(blockCount++);	/* new basic block */
 				statementCount = 0;
 			}
@@ -109,13 +150,29 @@ public class KangaTranslator extends GJNoArguDepthFirst<String> {
 	 */
 	@Override
 	public String visit(Goal n) throws Exception {
-		/* reset block counter */
-		blockCount = 0;
-		procedure = cfg.getProcedure(n.f0.tokenImage);
-		b.append(procedure.getName(),
-				"[", procedure.getArguments(), "]",
-				"[", procedure.getSpillCount(), "]",
-				"[", procedure.getMaxArguments(), "]");
+		translate(n);
+		n.f3.accept(this);
+		return program != null ? program.toString() : null;
+	}
+
+	/**
+	 * translates a single procedure, only MAIN for the Goal
+	 */
+	public void translate(Node node) throws Exception {
+		if(!(node instanceof Goal)) {
+			node.accept(this);
+			return;
+		}
+		Goal n = (Goal) node;
+		enter(n.f0.tokenImage);
+		String kanga = cfg.getKanga(procedure);
+		if(kanga != null) {
+			b.write(kanga);
+			b.flush();
+			return;
+		}
+		int start = b.length();
+		b.procedure(procedure.getName(), procedure.getArguments(), procedure.getSpillCount(), procedure.getMaxArguments());
 		/* new basic block */
 		block = procedure.getBlock(blockCount++);
 		/* reset statement counter */
@@ -123,9 +180,52 @@ public class KangaTranslator extends GJNoArguDepthFirst<String> {
 		statement = null;
 
 		n.f1.accept(this);
-		b.append("END");
-		n.f3.accept(this);
-		return b.toString();
+		b.end();
+		if(cfg.isIncremental())
+			cfg.putKanga(procedure, b.substring(start));
+		b.flush();
+	}
+
+	/**
+	 * Translates the procedures concurrently on the common pool, each by a translator and into a
+	 * buffer of its own: a procedure only reads its allocation and the global labels, which are
+	 * all assigned by then. Procedures go a window at a time, handed to the output in program
+	 * order once the whole window is done, so that at most a window is held in memory.
+	 */
+	public static void translate(final ControlFlowGraph cfg, Goal n, Gather out) throws Exception {
+		List<Node> procedures = new ArrayList<Node>();
+		procedures.add(n);
+		procedures.addAll(n.f3.nodes);
+		int window = 4 * ForkJoinPool.getCommonPoolParallelism();
+		for(int first = 0; first < procedures.size(); first += window) {
+			List<ForkJoinTask<String>> tasks = new ArrayList<ForkJoinTask<String>>();
+			for(final Node procedure : procedures.subList(first, Math.min(first + window, procedures.size())))
+				tasks.add(ForkJoinPool.commonPool().submit(new Callable<String>() {
+					@Override
+					public String call() throws Exception {
+						StringBuilder kanga = new StringBuilder();
+						new KangaTranslator(cfg, kanga).translate(procedure);
+						return kanga.toString();
+					}
+				}));
+			String[] kanga = new String[tasks.size()];
+			for(int i = 0; i < kanga.length; ++i)
+				try {
+					kanga[i] = tasks.get(i).get();
+				} catch (ExecutionException e) {
+					if(e.getCause() instanceof Exception)
+						throw (Exception) e.getCause();
+					throw (Error) e.getCause();
+				}
+			out.write(kanga);
+		}
+	}
+
+	/**
+	 * receives the Kanga of consecutive procedures, in program order
+	 */
+	public interface Gather {
+		void write(String[] procedures) throws IOException;
 	}
 
 	/**
@@ -148,13 +248,16 @@ public class KangaTranslator extends GJNoArguDepthFirst<String> {
 	 */
 	@Override
 	public String visit(syntaxtree.Procedure n) throws Exception {
-		/* reset block counter */
-		blockCount = 0;
-		procedure = cfg.getProcedure(n.f0.f0.tokenImage);
-		b.append(procedure.getName(),
-				'[', procedure.getArguments(), ']',
-				'[', procedure.getSpillCount(), ']',
-				'[', procedure.getMaxArguments(), ']');
+		enter(n.f0.f0.tokenImage);
+		/* unchanged since an earlier compilation, under the same labels */
+		String kanga = cfg.getKanga(procedure);
+		if(kanga != null) {
+			b.write(kanga);
+			b.flush();
+			return "Procedure";
+		}
+		int start = b.length();
+		b.procedure(procedure.getName(), procedure.getArguments(), procedure.getSpillCount(), procedure.getMaxArguments());
 		/* new basic block */
 		block = procedure.getBlock(blockCount++);
 		/* reset statement counter */
@@ -163,24 +266,27 @@ public class KangaTranslator extends GJNoArguDepthFirst<String> {
 
 		/* mips convention : callee stores all s-type registers that he uses */
 		for(String register : procedure.getCalleeSaved())
-			b.append("ASTORE", "SPILLEDARG", procedure.getCalleeStackOffset(register), register);
+			b.astore(procedure.getCalleeStackOffset(register), register);
 
 		for(int i = 0; i < 4 && i < procedure.getArguments(); ++i) {
 			String argument = String.format("TEMP %d", i);
 			if(!procedure.mappedInRegister(argument) && !procedure.mappedInStack(argument))
 				throw new Exception("invalid state " + argument + " " + procedure.where(argument));
 			else if(procedure.mappedInRegister(argument))
-				b.append("MOVE", procedure.getRegister(argument), "a" + i);
+				b.move(procedure.getRegister(argument), aregisters[i]);
 			else if(procedure.mappedInStack(argument))
-				b.append("ASTORE", "SPILLEDARG", procedure.getStackOffset(argument), "a" + i);
+				b.astore(procedure.getStackOffset(argument), aregisters[i]);
 		}
 
 		n.f4.accept(this);
 
 		/* mips convention : callee loads previous values of s-type registers that he used */
 		for(String register : procedure.getCalleeSaved())
-			b.append("ALOAD", register, "SPILLEDARG", procedure.getCalleeStackOffset(register));
-		b.append("END");
+			b.aload(register, procedure.getCalleeStackOffset(register));
+		b.end();
+		if(cfg.isIncremental())
+			cfg.putKanga(procedure, b.substring(start));
+		b.flush();
 		return "Procedure";
 	}
 
@@ -200,9 +306,7 @@ public class KangaTranslator extends GJNoArguDepthFirst<String> {
 		statement = block.getStatement(statementCount++);
 		if(statement.getState() != State.Live)
 			return "DeadStmt";
-		vregs = new Stack<String>() {{
-			for(int i = 1; i >= 0; push("v" + i--)) ;
-		}};
+		spilled = 0;
 		n.f0.accept(this);
 		return "LiveStmt";
 	}
@@ -213,7 +317,7 @@ public class KangaTranslator extends GJNoArguDepthFirst<String> {
 	 */
 	@Override
 	public String visit(NoOpStmt n) throws Exception {
-		b.append("NOOP");
+		b.noop();
 		assert Type.NoOpStmt == statement.getType();
 		return "NoOpStmt";
 	}
@@ -224,7 +328,7 @@ public class KangaTranslator extends GJNoArguDepthFirst<String> {
 	 */
 	@Override
 	public String visit(ErrorStmt n) throws Exception {
-		b.append("ERROR");
+		b.error();
 		assert Type.ErrorStmt == statement.getType();
 		return "ErrorStmt";
 	}
@@ -241,7 +345,7 @@ public class KangaTranslator extends GJNoArguDepthFirst<String> {
 
 		String label = getLabel(n.f2.f0.tokenImage);
 		String register = getRegister(n.f1.accept(this));
-		b.append("CJUMP", register, label);
+		b.cjump(register, label);
 
 		/* new basic block */
 		block = procedure.getBlock(blockCount++);
@@ -259,7 +363,7 @@ public class KangaTranslator extends GJNoArguDepthFirst<String> {
 		assert Type.JumpStmt == statement.getType();
 
 		String label = getLabel(n.f1.f0.tokenImage);
-		b.append("JUMP", label);
+		b.jump(label);
 
 		/* new basic block */
 		block = procedure.getBlock(blockCount++);
@@ -281,10 +385,10 @@ public class KangaTranslator extends GJNoArguDepthFirst<String> {
 		String target = getRegister(n.f1.accept(this));
 		String offset = n.f2.f0.tokenImage;
 		String source = getRegister(n.f3.accept(this));
-		b.append("HSTORE", target, offset, source);
+		b.hstore(target, offset, source);
 		//fixme: update spilledarg:
 		if(target.charAt(0) == 'v')
-			b.append("ASTORE", "SPILLEDARG", procedure.getStackOffset(n.f1.accept(this)), target);
+			b.astore(procedure.getStackOffset(n.f1.accept(this)), target);
 		return "HStoreStmt";
 	}
 
@@ -302,10 +406,10 @@ public class KangaTranslator extends GJNoArguDepthFirst<String> {
 		String target = getRegister(n.f1.accept(this));
 		String source = getRegister(n.f2.accept(this));
 		String offset = n.f3.f0.tokenImage;
-		b.append("HLOAD", target, source, offset);
+		b.hload(target, source, offset);
 		//fixme: update spilledarg:
 		if(target.charAt(0) == 'v')
-			b.append("ASTORE", "SPILLEDARG", procedure.getStackOffset(n.f1.accept(this)), target);
+			b.astore(procedure.getStackOffset(n.f1.accept(this)), target);
 		return "HLoadStmt";
 	}
 
@@ -323,53 +427,29 @@ public class KangaTranslator extends GJNoArguDepthFirst<String> {
 		if(!procedure.mappedInRegister(target) && !procedure.mappedInStack(target))
 			throw new Exception("invalid state " + target + " " + procedure.where(target));
 		Node node = n.f2.f0.choice;
-		if(node instanceof HAllocate) {
-			String exp = node.accept(this);
-			if(procedure.mappedInRegister(target)) {
-				target = procedure.getRegister(target);
-				b.append("MOVE", target, exp);
-			}
-			if(procedure.mappedInStack(target)) {
-				b.append("MOVE", "v0", exp);
-				b.append("ASTORE", "SPILLEDARG", procedure.getStackOffset(target), "v0");
-			}
-		}
+		/* operands are loaded first, then the expression is written straight into the MOVE */
+		String register = procedure.mappedInRegister(target) ? procedure.getRegister(target) : "v0";
+		if(node instanceof HAllocate)
+			b.hallocate(register, ((HAllocate) node).f1.accept(this));
 		if(node instanceof BinOp) {
-			String exp = node.accept(this);
-			if(procedure.mappedInRegister(target)) {
-				target = procedure.getRegister(target);
-				b.append("MOVE", target, exp);
-			}
-			if(procedure.mappedInStack(target)) {
-				b.append("MOVE", "v0", exp);
-				b.append("ASTORE", "SPILLEDARG", procedure.getStackOffset(target), "v0");
-			}
+			BinOp exp = (BinOp) node;
+			String operator = exp.f0.accept(this);
+			String loperand = getRegister(exp.f1.accept(this));
+			String roperand = exp.f2.accept(this);
+			b.move(register, operator, loperand, roperand);
 		}
 		if(node instanceof SimpleExp) {
 			procedureLabel = true;
 			String exp = node.accept(this);
 			procedureLabel = false;
-			if(procedure.mappedInRegister(target)) {
-				target = procedure.getRegister(target);
-				b.append("MOVE", target, exp);
-			}
-			if(procedure.mappedInStack(target)) {
-				b.append("MOVE", "v0", exp);
-				b.append("ASTORE", "SPILLEDARG", procedure.getStackOffset(target), "v0");
-			}
-		}
-
-		if(node instanceof Call) {
-			String exp = node.accept(this);
-			if(procedure.mappedInRegister(target)) {
-				target = procedure.getRegister(target);
-				b.append("MOVE", target, exp);
-			}
-			if(procedure.mappedInStack(target)) {
-				b.append("MOVE", "v0", exp);
-				b.append("ASTORE", "SPILLEDARG", procedure.getStackOffset(target), "v0");
-			}
+			/* copy between temps sharing a register */
+			if(!procedure.mappedInRegister(target) || !register.equals(exp))
+				b.move(register, exp);
 		}
+		if(node instanceof Call)
+			b.move(register, node.accept(this));
+		if(!procedure.mappedInRegister(target))
+			b.astore(procedure.getStackOffset(target), "v0");
 
 		return "MoveStmt";
 	}
@@ -384,7 +464,7 @@ public class KangaTranslator extends GJNoArguDepthFirst<String> {
 		assert Type.PrintStmt == statement.getType();
 
 		String exp = n.f1.accept(this);
-		b.append("PRINT", exp);
+		b.print(exp);
 
 		return "PrintStmt";
 	}
@@ -416,12 +496,10 @@ public class KangaTranslator extends GJNoArguDepthFirst<String> {
 		statement = block.getStatement(statementCount++);
 		assert Type.ReturnStmt == statement.getType();
 
-		vregs = new Stack<String>() {{
-			for(int i = 1; i >= 0; push("v" + i--)) ;
-		}};
+		spilled = 0;
 
 		String exp = n.f3.accept(this);
-		b.append("MOVE", "v0", exp);
+		b.move("v0", exp);
 
 		return "StmtExp";
 	}
@@ -447,54 +525,31 @@ public class KangaTranslator extends GJNoArguDepthFirst<String> {
 				register = procedure.getRegister(target);
 			else {
 				register = "v0";
-				b.append("ALOAD", register, "SPILLEDARG", procedure.getStackOffset(target));
+				b.aload(register, procedure.getStackOffset(target));
 			}
 			if(arg < 4)
-				b.append("MOVE", "a" + arg++, register);
+				b.move(aregisters[arg++], register);
 			else
-				b.append("PASSARG", arg++ - 3, register);
+				b.passarg(arg++ - 3, register);
 		}
 
+		/* direct calls name the procedure itself */
+		procedureLabel = true;
 		String proc = n.f1.accept(this);
+		procedureLabel = false;
 
 		/* mips convention : store used t-type registers */
 		for(String register : statement.getCallerSaved())
-			b.append("ASTORE", "SPILLEDARG", procedure.getCallerStackOffset(register), register);
+			b.astore(procedure.getCallerStackOffset(register), register);
 
-		b.append("CALL", proc);
+		b.call(proc);
 
 		/* mips convention : load used t-type registers */
 		for(String register : statement.getCallerSaved())
-			b.append("ALOAD", register, "SPILLEDARG", procedure.getCallerStackOffset(register));
+			b.aload(register, procedure.getCallerStackOffset(register));
 		return "v0";
 	}
 
-	/**
-	 * Grammar production:
-	 * f0 -> "HALLOCATE"
-	 * f1 -> SimpleExp()
-	 */
-	@Override
-	public String visit(HAllocate n) throws Exception {
-		String exp = n.f1.accept(this);
-		return String.format("HALLOCATE %s",exp);
-	}
-
-	/**
-	 * Grammar production:
-	 * f0 -> Operator()
-	 * f1 -> Temp()
-	 * f2 -> SimpleExp()
-	 */
-	@Override
-	public String visit(BinOp n) throws Exception {
-		String operator = n.f0.accept(this);
-		String loperand = getRegister(n.f1.accept(this));
-		String roperand = n.f2.accept(this);
-
-		return String.format("%s %s %s", operator, loperand, roperand);
-	}
-
 	/**
 	 * Grammar production:
 	 * f0 -> "LT"
@@ -535,7 +590,12 @@ public class KangaTranslator extends GJNoArguDepthFirst<String> {
 	 */
 	@Override
 	public String visit(Temp n) throws Exception {
-		return String.format("TEMP %s", n.f1.f0.tokenImage);
+		String name = temps.get(n.f1.f0.tokenImage);
+		if(name == null) {
+			name = "TEMP " + n.f1.f0.tokenImage;
+			temps.put(n.f1.f0.tokenImage, name);
+		}
+		return name;
 	}
 
 	/**
@@ -556,13 +616,109 @@ public class KangaTranslator extends GJNoArguDepthFirst<String> {
 		return n.f0.tokenImage;
 	}
 
+	/**
+	 * Kanga instructions of the procedure being translated, one per line, each token followed by a
+	 * space. The builder is kept from one procedure to the next.
+	 */
 	public static final class KangaBuffer {
-		StringBuilder s = new StringBuilder();
+		private final Appendable out;
+		private final StringBuilder s = new StringBuilder(1 << 12);
+
+		public KangaBuffer(Appendable out) {
+			this.out = out;
+		}
+
+		public void procedure(String name, int arguments, int spilled, int maxArguments) {
+			s.append(name).append(" [ ").append(arguments).append(" ] [ ").append(spilled)
+					.append(" ] [ ").append(maxArguments).append(" ] \n");
+		}
+
+		public void end() {
+			s.append("END \n");
+		}
+
+		public void label(String label) {
+			s.append(label).append(" \n");
+		}
+
+		public void noop() {
+			s.append("NOOP \n");
+		}
+
+		public void error() {
+			s.append("ERROR \n");
+		}
+
+		public void cjump(String register, String label) {
+			s.append("CJUMP ").append(register).append(' ').append(label).append(" \n");
+		}
+
+		public void jump(String label) {
+			s.append("JUMP ").append(label).append(" \n");
+		}
+
+		public void hstore(String target, String offset, String source) {
+			s.append("HSTORE ").append(target).append(' ').append(offset).append(' ').append(source).append(" \n");
+		}
+
+		public void hload(String target, String source, String offset) {
+			s.append("HLOAD ").append(target).append(' ').append(source).append(' ').append(offset).append(" \n");
+		}
+
+		public void aload(String register, int offset) {
+			s.append("ALOAD ").append(register).append(" SPILLEDARG ").append(offset).append(" \n");
+		}
+
+		public void astore(int offset, String register) {
+			s.append("ASTORE SPILLEDARG ").append(offset).append(' ').append(register).append(" \n");
+		}
+
+		public void move(String register, String exp) {
+			s.append("MOVE ").append(register).append(' ').append(exp).append(" \n");
+		}
+
+		public void move(String register, String operator, String loperand, String roperand) {
+			s.append("MOVE ").append(register).append(' ').append(operator).append(' ')
+					.append(loperand).append(' ').append(roperand).append(" \n");
+		}
+
+		public void hallocate(String register, String size) {
+			s.append("MOVE ").append(register).append(" HALLOCATE ").append(size).append(" \n");
+		}
+
+		public void passarg(int argument, String register) {
+			s.append("PASSARG ").append(argument).append(' ').append(register).append(" \n");
+		}
+
+		public void call(String exp) {
+			s.append("CALL ").append(exp).append(" \n");
+		}
+
+		public void print(String exp) {
+			s.append("PRINT ").append(exp).append(" \n");
+		}
+
+		/**
+		 * pastes lines translated before
+		 */
+		public void write(String text) {
+			s.append(text);
+		}
+
+		public int length() {
+			return s.length();
+		}
+
+		public String substring(int start) {
+			return s.substring(start);
+		}
 
-		public <T> void append(T... args) {
-			for(T arg : args)
-				s.append(arg).append(' ');
-			s.append('\n');
+		/**
+		 * hands the lines gathered so far to the output
+		 */
+		public void flush() throws IOException {
+			out.append(s);
+			s.setLength(0);
 		}
 
 		@Override
@@ -0,0 +1,108 @@
+package dataflow;
+
+import java.util.*;
+
+/**
+ * Natural loop: the blocks reaching a back edge n -> h without passing through the header h,
+ * h dominating n. Back edges sharing a header make up a single loop.
+ */
+public final class Loop {
+	private BasicBlock header;
+	private Set<BasicBlock> blocks;
+	private List<BasicBlock> latches;			/* sources of the back edges */
+
+	private Loop(BasicBlock header) {
+		this.header = header;
+		this.blocks = new LinkedHashSet<BasicBlock>();
+		this.latches = new ArrayList<BasicBlock>();
+		this.blocks.add(header);
+	}
+
+	/**
+	 * @return the natural loops of a procedure, inner loops before the loops containing them
+	 */
+	public static List<Loop> find(DominatorTree tree) {
+		Map<BasicBlock, Loop> loops = new LinkedHashMap<BasicBlock, Loop>();
+		for(BasicBlock block : tree.getReversePostorder())
+			for(BasicBlock successor : block.successors)
+				if(tree.dominates(successor, block)) {
+					if(!loops.containsKey(successor))
+						loops.put(successor, new Loop(successor));
+					loops.get(successor).addLatch(block, tree);
+				}
+		List<Loop> result = new ArrayList<Loop>(loops.values());
+		Collections.sort(result, new Comparator<Loop>() {
+			@Override
+			public int compare(Loop a, Loop b) {
+				return a.blocks.size() - b.blocks.size();
+			}
+		});
+		return result;
+	}
+
+	private void addLatch(BasicBlock latch, DominatorTree tree) {
+		if(latches.contains(latch))
+			return;
+		latches.add(latch);
+		Deque<BasicBlock> worklist = new ArrayDeque<BasicBlock>();
+		worklist.push(latch);
+		while(!worklist.isEmpty()) {
+			BasicBlock block = worklist.pop();
+			if(tree.isReachable(block) && blocks.add(block))
+				worklist.addAll(block.predecessors);
+		}
+	}
+
+	public BasicBlock getHeader() {
+		return header;
+	}
+
+	public Set<BasicBlock> getBlocks() {
+		return blocks;
+	}
+
+	public List<BasicBlock> getLatches() {
+		return latches;
+	}
+
+	public boolean contains(BasicBlock block) {
+		return blocks.contains(block);
+	}
+
+	public boolean contains(Loop loop) {
+		return blocks.containsAll(loop.blocks);
+	}
+
+	/**
+	 * @return the blocks inside the loop with a successor outside of it
+	 */
+	public List<BasicBlock> getExits() {
+		List<BasicBlock> exits = new ArrayList<BasicBlock>();
+		for(BasicBlock block : blocks)
+			for(BasicBlock successor : block.successors)
+				if(!blocks.contains(successor)) {
+					exits.add(block);
+					break;
+				}
+		return exits;
+	}
+
+	/**
+	 * @return the predecessors of the header outside of the loop
+	 */
+	public List<BasicBlock> getEntries() {
+		List<BasicBlock> entries = new ArrayList<BasicBlock>();
+		for(BasicBlock predecessor : new LinkedHashSet<BasicBlock>(header.predecessors))
+			if(!blocks.contains(predecessor))
+				entries.add(predecessor);
+		return entries;
+	}
+
+	@Override
+	public String toString() {
+		List<Integer> ids = new ArrayList<Integer>();
+		for(BasicBlock block : blocks)
+			ids.add(block.getId());
+		return "Loop header: " + header.getId() + " blocks: " + ids;
+	}
+}
@@ -103,9 +103,18 @@ public class PopulateControlFlowGraph extends GJNoArguDepthFirst<String> {
 	 */
 	@Override
 	public String visit(Goal n) throws Exception {
+		populateMain(n);
+		n.f3.accept(this);
+		link();
+		return null;
+	}
+
+	private void populateMain(Goal n) throws Exception {
 		/* new procedure */
 		procedure = new Procedure(n.f0.tokenImage);
 		procedure.setArguments(0);
+		procedure.setBody(n.f1.f0);
+		procedure.setNode(n);
 		cfg.addProcedure(procedure.getName(), procedure);
 
 		/* new basic block */
@@ -114,14 +123,40 @@ public class PopulateControlFlowGraph extends GJNoArguDepthFirst<String> {
 		statement = null;
 
 		n.f1.accept(this);
-		n.f3.accept(this);
+	}
 
-		/* update basic block inheritance tree */
+	/**
+	 * populates a procedure parsed apart from the rest of the program, see Compiler's streaming
+	 * mode. Its jumps are linked right away and the label maps emptied, so that nothing of it is
+	 * kept here once it is done.
+	 */
+	public void populate(syntaxtree.Procedure n) throws Exception {
+		n.accept(this);
+		link();
+	}
+
+	/**
+	 * populates a procedure of the graph again once its syntax tree was modified, in place of the
+	 * former one. The other procedures are left as they are, MAIN's included.
+	 */
+	public void repopulate(Procedure procedure) throws Exception {
+		if(procedure.getNode() instanceof Goal)
+			populateMain((Goal) procedure.getNode());
+		else
+			procedure.getNode().accept(this);
+		link();
+	}
+
+	/**
+	 * update basic block inheritance tree
+	 */
+	private void link() {
 		for(String label : usage.keySet())
 			for(BasicBlock block : usage.get(label))
 				for(BasicBlock successor : definition.get(label))
 					block.addSuccessor(successor);
-		return null;
+		definition.clear();
+		usage.clear();
 	}
 
 	/**
@@ -147,6 +182,8 @@ public class PopulateControlFlowGraph extends GJNoArguDepthFirst<String> {
 		/* new procedure */
 		procedure = new Procedure(n.f0.f0.tokenImage);
 		procedure.setArguments(Integer.parseInt(n.f2.f0.tokenImage));
+		procedure.setBody(n.f4.f1.f0);
+		procedure.setNode(n);
 		cfg.addProcedure(procedure.getName(), procedure);
 		/* new basic block */
 		block = new BasicBlock(blockCount++);
@@ -171,6 +208,7 @@ public class PopulateControlFlowGraph extends GJNoArguDepthFirst<String> {
 	@Override
 	public String visit(Stmt n) throws Exception {
 		statement = new Statement();
+		statement.setNode(n);
 		block.addStatement(statement);
 		n.f0.accept(this);
 		return null;
@@ -324,6 +362,7 @@ public class PopulateControlFlowGraph extends GJNoArguDepthFirst<String> {
 		n.f1.accept(this);
 		statement = new Statement();
 		statement.setType(Type.ReturnStmt);
+		statement.setNode(n);
 		block.addStatement(statement);
 		n.f3.accept(this);
 		return null;
@@ -1,5 +1,7 @@
 package dataflow;
 
+import syntaxtree.*;
+
 import java.text.DecimalFormat;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
@@ -7,6 +9,8 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import static dataflow.Statement.State;
+import static sets.Sets.difference;
+import static sets.Sets.intersection;
 
 public final class Procedure {
 	public static final List<String> registers;
@@ -30,6 +34,8 @@ public final class Procedure {
 	private Map<String, Integer> frequencyMap;
 	private List<BasicBlock> blocks;
 	private Set<String> calleeSaved;				/* contains s-type registers that need to be stored by the procedure called */
+	private NodeListOptional body;					/* syntax tree statement list, ( ( Label() )? Stmt() )* */
+	private Node node;								/* syntax tree procedure, the Goal for MAIN */
 	private String name;
 
 	public Procedure(String name) {
@@ -49,19 +55,21 @@ public final class Procedure {
 	 * populate in & out sets
 	 */
 	public void analyzeLiveness(){
+		/* a backward problem: each block pulls from its successors, then its statements are updated
+		 * right away, so that a sweep from the last block carries liveness across many blocks */
 		for(boolean changed = true; changed; ){
 			changed = false;
-			for(BasicBlock block : blocks)
-				changed = block.populateStatementSets() || changed;
-			for(BasicBlock block : blocks)
-				changed = block.populateBlockSets() || changed;
+			for(int i = blocks.size() - 1; i >= 0; --i) {
+				changed = blocks.get(i).populateBlockSets() || changed;
+				changed = blocks.get(i).populateStatementSets() || changed;
+			}
 		}
 		/* mark dead statements */
 		/* todo: intergrate this to liveness analysis algorithm... */
 		for(BasicBlock block : blocks)
 			for(Statement statement : block.statements)
 				for(String def : statement.def)
-					if(!statement.out.contains(def)) // && !statement.containsCall()) //contained in use & def
+					if(!statement.out.contains(def) && !statement.containsCall())	/* calls have side effects */
 						statement.setState(State.Dead);
 		int j = arguments < 4 ? arguments > 0 ? arguments : 1 : 4;	/* at least one arg: this */
 		/* force block.in && block.statement.in to contain {TEMP i, i in min(4,min(1,arguments))} function arguments */
@@ -204,13 +212,19 @@ public final class Procedure {
 			}
 		}
 		adjacencyMap = new HashMap<String, Set<String>>(this.adjacencyMap);
-		/* assign registers to temps */
+		Set<String> crossing = getCrossing();
+		/* assign registers to temps, s-type ones first to temps live across a call: saved once rather than per call */
 		while(!stack.isEmpty()) {
 			available = new ArrayList<String>(registers);
 			String vertex = stack.pop();
 			for(String adjacent : adjacencyMap.get(vertex))
 				available.remove(registerMap.get(adjacent));
 			String register = available.get(0);
+			for(String candidate : available)
+				if(candidate.charAt(0) == (crossing.contains(vertex) ? 's' : 't')) {
+					register = candidate;
+					break;
+				}
 			registerMap.put(vertex, register);
 			/* logging */
 			logger.log(Level.INFO, "Procedure: " + name.replaceFirst("_", "::") +
@@ -218,6 +232,139 @@ public final class Procedure {
 		}
 	}
 
+	/**
+	 * Experimental SSA based allocation, after Hack, Grund and Goos, "Register Allocation for
+	 * Programs in SSA-Form":
+	 *
+	 * - Spill until register pressure (MaxLive, the largest live set) is at most k: at the most
+	 *   crowded statement pick the live temp with the lowest spill cost per interference.
+	 * - Color temps as their live ranges start, walking blocks in dominator tree order.
+	 *
+	 * The procedure is no longer in SSA form here: the SSA round trip before allocation only
+	 * renames its temps and leaves phi copies behind. Its interference graph is then not chordal in
+	 * general, the dominance order is a heuristic and a temp finding no register left is spilled.
+	 *
+	 * Temps live across a call prefer s-type registers, the others t-type ones, and a temp takes the
+	 * register of a copy related temp when possible so that the copy disappears.
+	 */
+	public void colorChordal() {
+		Set<String> spilled = new HashSet<String>(stackMap.keySet());
+		int k = registers.size();
+		/* spilling only lowers pressure, only the statements above k to begin with are looked at again */
+		List<Statement> crowded = new ArrayList<Statement>();
+		for(BasicBlock block : blocks)
+			for(Statement statement : block.statements)
+				if(difference(statement.in, spilled).size() > k)
+					crowded.add(statement);
+		while(true) {
+			Set<String> pressure = null;
+			for(Iterator<Statement> i = crowded.iterator(); i.hasNext(); ) {
+				Set<String> live = difference(i.next().in, spilled);
+				if(live.size() <= k)
+					i.remove();
+				else if(pressure == null || live.size() > pressure.size())
+					pressure = live;
+			}
+			if(pressure == null)
+				break;
+			String spillCandidate = null;
+			double currentCost, minimumCost = Double.MAX_VALUE;
+			for(String vertex : pressure) {
+				double degree = adjacencyMap.containsKey(vertex) ? adjacencyMap.get(vertex).size() : 1;
+				if((currentCost = getSpillCost(vertex) / degree) < minimumCost) {
+					minimumCost = currentCost;
+					spillCandidate = vertex;
+				}
+			}
+			stackMap.put(spillCandidate, spillCount++);
+			spilled.add(spillCandidate);
+			logger.log(Level.INFO, "Procedure: " + name.replaceFirst("_", "::") +
+					" Spilling: " + spillCandidate + " Cost: " + new DecimalFormat("#.###").format(minimumCost));
+		}
+
+		Set<String> crossing = getCrossing();
+		Map<String, Set<String>> related = new HashMap<String, Set<String>>();	/* copy related temps */
+		for(BasicBlock block : blocks)
+			for(Statement statement : block.statements) {
+				String source = getCopySource(statement);
+				if(source != null)
+					for(String def : statement.def) {
+						relate(related, def, source);
+						relate(related, source, def);
+					}
+			}
+
+		List<String> order = new ArrayList<String>();
+		DominatorTree tree = new DominatorTree(this);
+		for(BasicBlock block : tree.getPreorder())
+			for(Statement statement : block.statements)
+				order.addAll(statement.in);
+		order.addAll(adjacencyMap.keySet());	/* unreachable code */
+
+		for(String vertex : order) {
+			if(spilled.contains(vertex) || registerMap.containsKey(vertex))
+				continue;
+			Set<String> taken = new HashSet<String>();
+			if(adjacencyMap.containsKey(vertex))
+				for(String adjacent : adjacencyMap.get(vertex))
+					if(registerMap.containsKey(adjacent))
+						taken.add(registerMap.get(adjacent));
+			String register = null;
+			char preferred = crossing.contains(vertex) ? 's' : 't';
+			/* a copy is cheaper than a save around every call: a temp crossing one only joins s-type partners */
+			if(related.containsKey(vertex))
+				for(String partner : related.get(vertex))
+					if(registerMap.containsKey(partner) && !taken.contains(registerMap.get(partner))
+							&& (preferred == 't' || registerMap.get(partner).charAt(0) == 's'))
+						register = registerMap.get(partner);
+			for(int pass = 0; register == null && pass < 2; ++pass)
+				for(String candidate : registers)
+					if(!taken.contains(candidate) && (candidate.charAt(0) == preferred) == (pass == 0)) {
+						register = candidate;
+						break;
+					}
+			if(register == null) {
+				stackMap.put(vertex, spillCount++);
+				spilled.add(vertex);
+				logger.log(Level.INFO, "Procedure: " + name.replaceFirst("_", "::") + " Spilling: " + vertex);
+				continue;
+			}
+			registerMap.put(vertex, register);
+			logger.log(Level.INFO, "Procedure: " + name.replaceFirst("_", "::") +
+					" Assigning register: " + register + " to " + vertex);
+		}
+	}
+
+	private static void relate(Map<String, Set<String>> related, String a, String b) {
+		if(!related.containsKey(a))
+			related.put(a, new HashSet<String>());
+		related.get(a).add(b);
+	}
+
+	/**
+	 * @return the source temp of a MOVE TEMP a TEMP b statement, null otherwise
+	 */
+	private static String getCopySource(Statement statement) {
+		if(statement.getType() != Statement.Type.MoveStmt || !(statement.getNode() instanceof Stmt))
+			return null;
+		Node exp = ((MoveStmt) ((Stmt) statement.getNode()).f0.choice).f2.f0.choice;
+		if(!(exp instanceof SimpleExp) || !(((SimpleExp) exp).f0.choice instanceof Temp))
+			return null;
+		return String.format("TEMP %s", ((Temp) ((SimpleExp) exp).f0.choice).f1.f0.tokenImage);
+	}
+
+	/**
+	 * @return the temps live across a call
+	 */
+	private Set<String> getCrossing() {
+		Set<String> crossing = new HashSet<String>();
+		for(BasicBlock block : blocks)
+			for(Statement statement : block.statements)
+				if(statement.containsCall())
+					crossing.addAll(difference(intersection(statement.in, statement.out), statement.def));
+		return crossing;
+	}
+
 	/**
 	 * populates callee and caller spill sets and assigns stack offsets
 	 */
@@ -251,6 +398,36 @@ public final class Procedure {
 		logger.log(Level.INFO, "Procedure: " + name.replaceFirst("_", "::") + " Spilled: " + this.spillCount);
 	}
 
+	/**
+	 * @return a copy of the allocation results, once populateSpillSets ran
+	 */
+	Allocation getAllocation() {
+		return new Allocation(registerMap, stackMap, spillCount, calleeSaved, calleeStackOffset, callerStackOffset, blocks);
+	}
+
+	/**
+	 * restores the results of an earlier allocation of the same procedure text, in place of the
+	 * whole analysis. Blocks and statements must already be populated.
+	 */
+	void setAllocation(Allocation allocation) {
+		registerMap = new HashMap<String, String>(allocation.registerMap);
+		stackMap = new HashMap<String, Integer>(allocation.stackMap);
+		spillCount = allocation.spillCount;
+		calleeSaved = new HashSet<String>(allocation.calleeSaved);
+		calleeStackOffset = new HashMap<String, Integer>(allocation.calleeStackOffset);
+		callerStackOffset = new HashMap<String, Integer>(allocation.callerStackOffset);
+		int i = 0;
+		for(BasicBlock block : blocks)
+			for(Statement statement : block.statements) {
+				statement.setState(allocation.dead[i] ? State.Dead : State.Live);
+				if(allocation.callerSaved.get(i) != null) {
+					statement.getCallerSaved().clear();
+					statement.getCallerSaved().addAll(allocation.callerSaved.get(i));
+				}
+				++i;
+			}
+	}
+
 	public String where(String vertex) {
 		if(registerMap.containsKey(vertex))
 			return "resides @register: " + registerMap.get(vertex);
@@ -312,6 +489,26 @@ public final class Procedure {
 		return spillCount;
 	}
 
+	public NodeListOptional getBody() {
+		return body;
+	}
+
+	public void setBody(NodeListOptional body) {
+		this.body = body;
+	}
+
+	public Node getNode() {
+		return node;
+	}
+
+	public void setNode(Node node) {
+		this.node = node;
+	}
+
+	public List<BasicBlock> getBlocks() {
+		return blocks;
+	}
+
 	public void addBlock(BasicBlock block){
 		blocks.add(block);
 	}
@@ -0,0 +1,71 @@
+package dataflow;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Results of earlier compilations, per procedure, for a warm JVM (the compile daemon, the watch
+ * mode) to recompile only the procedures that changed. A procedure is identified by the
+ * fingerprint of its text once optimized, its name and argument count included, and of the
+ * allocator. Interprocedural optimizations have already run by then, so everything the
+ * allocation depends on is in that text.
+ *
+ * An entry holds the allocation results and the Kanga emitted from them. The Kanga also depends
+ * on the global labels the procedure was given, which shift when a procedure before it changes,
+ * so it is only reused under the same labels; otherwise it is emitted again from the allocation.
+ *
+ * The least recently used entries are dropped beyond the capacity. A store may be shared by
+ * compilations running concurrently.
+ */
+public final class ProcedureStore {
+	private final Map<String, Entry> entries;
+
+	public ProcedureStore(final int capacity) {
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	synchronized Allocation getAllocation(String fingerprint) {
+		Entry entry = entries.get(fingerprint);
+		return entry != null ? entry.allocation : null;
+	}
+
+	/**
+	 * @return the Kanga emitted for a procedure under the given global labels, null if none
+	 */
+	synchronized String getKanga(String fingerprint, String labels) {
+		Entry entry = entries.get(fingerprint);
+		return entry != null && labels.equals(entry.labels) ? entry.kanga : null;
+	}
+
+	synchronized void putAllocation(String fingerprint, Allocation allocation) {
+		if(!entries.containsKey(fingerprint))
+			entries.put(fingerprint, new Entry(allocation));
+	}
+
+	synchronized void putKanga(String fingerprint, String labels, String kanga) {
+		Entry entry = entries.get(fingerprint);
+		if(entry == null)
+			return;
+		entry.labels = labels;
+		entry.kanga = kanga;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	private static final class Entry {
+		private final Allocation allocation;
+		private String labels;			/* global labels the Kanga was emitted under */
+		private String kanga;
+
+		private Entry(Allocation allocation) {
+			this.allocation = allocation;
+		}
+	}
+}
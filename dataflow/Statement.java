@@ -1,5 +1,7 @@
 package dataflow;
 
+import syntaxtree.Node;
+
 import java.util.HashSet;
 import java.util.Set;
 
@@ -12,6 +14,7 @@ public final class Statement {
 	private boolean containsCall;
 	private State state;				/* contains statement state ,State.Live or State.Dead */
 	private Type type;					/* contains statement type */
+	private Node node;					/* syntax tree node (Stmt or StmtExp for returns) */
 
 	public Statement() {
 		this.def = new HashSet<String>();
@@ -43,6 +46,14 @@ public final class Statement {
 		this.type = type;
 	}
 
+	public Node getNode() {
+		return node;
+	}
+
+	public void setNode(Node node) {
+		this.node = node;
+	}
+
 	public boolean containsCall() {
 		return containsCall;
 	}
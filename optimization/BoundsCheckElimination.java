@@ -0,0 +1,714 @@
+package optimization;
+
+import dataflow.BasicBlock;
+import dataflow.DominatorTree;
+import dataflow.Loop;
+import dataflow.Procedure;
+import dataflow.Statement;
+import syntaxtree.*;
+
+import java.util.*;
+
+/**
+ * Bounds check elimination (value range analysis):
+ *
+ * every temp gets an interval of the values it may hold, and the comparisons known to hold are
+ * kept as facts. Both are narrowed along CJUMP edges by the condition tested, LT a b or
+ * MINUS 1 (LT a b) as MiniJava checks array indices, and widened at loop headers so that
+ * induction variables get the bounds given by their initial value and the loop exit test.
+ *
+ * A CJUMP whose condition is known becomes a JUMP or a NOOP, the ERROR blocks guarded by the
+ * checks proven to pass become unreachable and are left to dead code elimination.
+ *
+ * The checks of a loop index i against the length of an array the loop does not change cannot be
+ * proven this way, the length being loaded from the heap. When a loop i < n keeps such a check
+ * of a * i + b, a > 0, the loop is versioned: a test placed before it compares a * (n - 1) + b
+ * with the length and enters a copy of the loop without the check if it is smaller, the original
+ * loop otherwise. Array lengths are assumed never to be written after allocation, and the length
+ * is only loaded ahead when the first iteration of the loop would load it anyway.
+ */
+public final class BoundsCheckElimination extends Pass {
+
+	@Override
+	protected boolean run(Procedure procedure) throws Exception {
+		DominatorTree tree = new DominatorTree(procedure);
+		Map<BasicBlock, State> out = new HashMap<BasicBlock, State>();
+		Map<BasicBlock, State> in = new HashMap<BasicBlock, State>();
+		Set<BasicBlock> headers = new HashSet<BasicBlock>();
+		for(BasicBlock block : tree.getReversePostorder())
+			for(BasicBlock predecessor : block.predecessors)
+				if(tree.dominates(block, predecessor))
+					headers.add(block);
+
+		for(boolean changed = true; changed; ) {
+			changed = false;
+			for(BasicBlock block : tree.getReversePostorder()) {
+				State state = meet(block, tree.getEntry(), out);
+				if(headers.contains(block) && in.containsKey(block))
+					state = in.get(block).widen(state);
+				in.put(block, state);
+				state = new State(state);
+				for(Statement statement : block.statements)
+					transfer(statement, state);
+				if(!state.equals(out.get(block))) {
+					out.put(block, state);
+					changed = true;
+				}
+			}
+		}
+
+		boolean changed = false;
+		for(BasicBlock block : tree.getReversePostorder()) {
+			Statement last = block.statements.get(block.statements.size() - 1);
+			if(last.getType() != Statement.Type.CJumpStmt)
+				continue;
+			Stmt stmt = (Stmt) last.getNode();
+			CJumpStmt cjump = (CJumpStmt) stmt.f0.choice;
+			Range condition = out.get(block).get(Statements.name(cjump.f1));
+			if(condition.lo == 1 && condition.hi == 1)
+				stmt.f0.choice = new NoOpStmt();
+			else if(condition.hi < 1 || condition.lo > 1)
+				stmt.f0.choice = new JumpStmt(cjump.f2);
+			else
+				continue;
+			changed = true;
+		}
+		if(changed)
+			return true;
+
+		Set<String> labels = Statements.getLabels(procedure.getBody());
+		for(Loop loop : Loop.find(tree))
+			if(new Versioning(procedure, tree, loop, out).run(labels))
+				return true;
+		return false;
+	}
+
+	/**
+	 * join of the states leaving every predecessor, narrowed by the conditions of the edges
+	 */
+	private static State meet(BasicBlock block, BasicBlock entry, Map<BasicBlock, State> out) {
+		State state = null;
+		if(block == entry)
+			return new State(null);
+		for(BasicBlock predecessor : block.predecessors) {
+			Statement last = predecessor.statements.get(predecessor.statements.size() - 1);
+			/* ERROR stops the program, it does not fall through */
+			if(!out.containsKey(predecessor) || last.getType() == Statement.Type.ErrorStmt)
+				continue;
+			State edge = new State(out.get(predecessor));
+			if(last.getType() == Statement.Type.CJumpStmt && new HashSet<BasicBlock>(predecessor.successors).size() == 2) {
+				/* CJUMP falls through when its condition is 1 */
+				Temp condition = ((CJumpStmt) ((Stmt) last.getNode()).f0.choice).f1;
+				edge.assume(Statements.name(condition), predecessor.successors.get(0) == block);
+			}
+			state = state == null ? edge : state.join(edge);
+		}
+		return state != null ? state : new State(null);
+	}
+
+	private static void transfer(Statement statement, State state) {
+		Node node = statement.getNode();
+		Temp def = Statements.getDef(node);
+		if(def == null)
+			return;
+		String target = Statements.name(def);
+		Node exp = Statements.getExp(node);
+		Range range = Range.top;
+		Condition condition = null;
+		if(exp instanceof SimpleExp && value((SimpleExp) exp).equals(target))
+			return;
+		if(exp instanceof SimpleExp) {
+			range = state.get((SimpleExp) exp);
+			if(((SimpleExp) exp).f0.choice instanceof Temp)
+				condition = new Condition("MOVE", value((SimpleExp) exp), "");
+		}
+		else if(((Stmt) node).f0.choice instanceof HLoadStmt) {
+			HLoadStmt load = (HLoadStmt) ((Stmt) node).f0.choice;
+			condition = new Condition("HLOAD", Statements.name(load.f2), load.f3.f0.tokenImage);
+		}
+		else if(exp instanceof BinOp) {
+			BinOp binop = (BinOp) exp;
+			String operator = ((NodeToken) binop.f0.f0.choice).tokenImage;
+			Range left = state.get(Statements.name(binop.f1)), right = state.get(binop.f2);
+			condition = new Condition(operator, Statements.name(binop.f1), value(binop.f2));
+			if(operator.equals("PLUS"))
+				range = Range.of(left.lo + right.lo, left.hi + right.hi);
+			else if(operator.equals("MINUS"))
+				range = Range.of(left.lo - right.hi, left.hi - right.lo);
+			else if(operator.equals("TIMES"))
+				range = left.times(right);
+			else
+				range = state.less(condition.left, condition.right);
+		}
+		state.kill(target);
+		state.ranges.put(target, range);
+		if(condition != null && !condition.left.equals(target) && !condition.right.equals(target))
+			state.conditions.put(target, condition);
+	}
+
+	/**
+	 * versioning of a loop on the checks it keeps: the loop is entered at its header only, leaves
+	 * it from its header only, and the statements of the header can run again before it
+	 */
+	private static final class Versioning {
+		private final Procedure procedure;
+		private final DominatorTree tree;
+		private final Loop loop;
+		private final Map<BasicBlock, State> out;
+		private final Set<String> defs = new HashSet<String>();
+		private final List<Check> checks = new ArrayList<Check>();
+		private boolean clobbered = false;
+		private final List<HStoreStmt> stores = new ArrayList<HStoreStmt>();
+
+		private Versioning(Procedure procedure, DominatorTree tree, Loop loop, Map<BasicBlock, State> out) {
+			this.procedure = procedure;
+			this.tree = tree;
+			this.loop = loop;
+			this.out = out;
+		}
+
+		private boolean run(Set<String> labels) throws Exception {
+			BasicBlock header = loop.getHeader();
+			NodeListOptional body = procedure.getBody();
+			Set<Node> stmts = new HashSet<Node>();
+			for(BasicBlock block : loop.getBlocks())
+				for(Statement statement : block.statements) {
+					stmts.add(statement.getNode());
+					defs.addAll(statement.def);
+					clobbered = clobbered || statement.containsCall();
+					if(statement.getType() == Statement.Type.HStoreStmt)
+						stores.add((HStoreStmt) ((Stmt) statement.getNode()).f0.choice);
+				}
+
+			/* the loop takes a contiguous range of the body, from its labelled header to a jump back */
+			int start = 0, end = 0;
+			while(start < body.size() && Statements.getStmt(body.elementAt(start)) != header.statements.get(0).getNode())
+				++start;
+			for(int i = start; i < body.size(); ++i)
+				if(stmts.contains(Statements.getStmt(body.elementAt(i))))
+					end = i;
+			NodeOptional target = start < body.size() ? Statements.getLabel(body.elementAt(start)) : null;
+			if(target == null || !target.present() || ((Label) target.node).f0.tokenImage.startsWith("BCE")
+					|| !(Statements.getStmt(body.elementAt(end)).f0.choice instanceof JumpStmt))
+				return false;
+			for(int i = start; i <= end; ++i)
+				if(!stmts.contains(Statements.getStmt(body.elementAt(i))))
+					return false;
+			List<BasicBlock> exits = loop.getExits();
+			Statement test = header.statements.get(header.statements.size() - 1);
+			if(exits.size() != 1 || exits.get(0) != header || test.getType() != Statement.Type.CJumpStmt
+					|| !loop.contains(header.successors.get(0)))
+				return false;
+			Set<String> written = new HashSet<String>();
+			for(int i = header.statements.size() - 1; i >= 0; --i) {
+				Statement statement = header.statements.get(i);
+				if(i < header.statements.size() - 1 && statement.getType() != Statement.Type.NoOpStmt
+						&& statement.getType() != Statement.Type.MoveStmt && statement.getType() != Statement.Type.HLoadStmt
+						|| statement.containsCall())
+					return false;
+				written.addAll(statement.def);
+				for(String use : statement.use)
+					if(written.contains(use))
+						return false;
+			}
+
+			for(BasicBlock block : tree.getReversePostorder())
+				if(loop.contains(block) && block != header)
+					find(block);
+			if(checks.isEmpty())
+				return false;
+
+			String slow = fresh(labels);
+			Map<String, String> renamed = new HashMap<String, String>();
+			for(int i = start; i <= end; ++i) {
+				NodeOptional label = Statements.getLabel(body.elementAt(i));
+				if(label.present())
+					renamed.put(((Label) label.node).f0.tokenImage, fresh(labels));
+			}
+			Map<Node, Check> checked = new HashMap<Node, Check>();
+			for(Check check : checks)
+				checked.put(check.stmt, check);
+			List<Node> fast = new ArrayList<Node>();
+			for(int i = start; i <= end; ++i) {
+				Stmt stmt = Statements.getStmt(body.elementAt(i));
+				NodeOptional label = Statements.getLabel(body.elementAt(i));
+				Stmt copy = checked.containsKey(stmt)
+						? Statements.stmt(new JumpStmt(Statements.label(renamed.get(checked.get(stmt).ok))))
+						: Statements.copy(stmt, 0, renamed);
+				fast.add(Statements.entry(label.present() ? Statements.label(renamed.get(((Label) label.node).f0.tokenImage)) : null, copy));
+			}
+
+			List<Node> nodes = predicate(header, slow);
+			String entry = fresh(labels);
+			String name = ((Label) target.node).f0.tokenImage;
+			if(!Statements.preheader(procedure, loop, nodes, entry))
+				return false;
+			int position = 0;
+			while(Statements.getStmt(body.elementAt(position)) != nodes.get(nodes.size() - 1))
+				++position;
+			body.nodes.addAll(position + 1, fast);
+			target.node = Statements.label(slow);
+			for(Enumeration<Node> e = body.elements(); e.hasMoreElements(); ) {
+				Node stmt = Statements.getStmt(e.nextElement()).f0.choice;
+				if(stmt instanceof JumpStmt && ((JumpStmt) stmt).f1.f0.tokenImage.equals(name))
+					((JumpStmt) stmt).f1 = Statements.label(slow);
+				else if(stmt instanceof CJumpStmt && ((CJumpStmt) stmt).f2.f0.tokenImage.equals(name))
+					((CJumpStmt) stmt).f2 = Statements.label(slow);
+			}
+			return true;
+		}
+
+		/**
+		 * records the check ending a block if the loop test bounds its index and the length it is
+		 * compared with can be had before the loop
+		 */
+		private void find(BasicBlock block) {
+			Statement last = block.statements.get(block.statements.size() - 1);
+			if(last.getType() != Statement.Type.CJumpStmt || block.successors.get(0).statements.get(0).getType() != Statement.Type.ErrorStmt)
+				return;
+			CJumpStmt cjump = (CJumpStmt) ((Stmt) last.getNode()).f0.choice;
+			State state = out.get(block);
+			Condition negation = state.conditions.get(Statements.name(cjump.f1));
+			if(negation == null || !negation.operator.equals("MINUS") || state.get(negation.left).lo != 1 || state.get(negation.left).hi != 1)
+				return;
+			Condition less = state.conditions.get(negation.right);
+			if(less == null || !less.operator.equals("LT"))
+				return;
+
+			Check check = new Check();
+			check.stmt = last.getNode();
+			check.ok = cjump.f2.f0.tokenImage;
+			for(String fact : state.facts) {
+				String[] operands = fact.split(" < ");
+				if(operands.length != 2 || !isInvariant(operands[1]))
+					continue;
+				long[] index = affine(less.left, operands[0], state);
+				long lo = state.get(operands[0]).lo;
+				if(index == null || index[0] <= 0 || lo == Integer.MIN_VALUE || Range.of(index[0] * lo + index[1], index[0] * lo + index[1]) == Range.top)
+					continue;
+				long limit = (Integer.MAX_VALUE - index[1]) / index[0] + 2;
+				if(state.get(operands[1]).lo >= limit)
+					continue;
+				check.bound = operands[1];
+				check.factor = index[0];
+				check.offset = index[1];
+				check.limit = limit;
+				check.guarded = check.limit <= Integer.MAX_VALUE && state.get(check.bound).hi >= check.limit;
+				break;
+			}
+			if(check.bound == null)
+				return;
+
+			String length = resolve(less.right, state);
+			if(isInvariant(length)) {
+				check.length = length;
+				checks.add(check);
+				return;
+			}
+			Condition load = state.conditions.get(length);
+			if(load == null || !load.operator.equals("HLOAD") || !load.right.equals("0"))
+				return;
+			String array = resolve(load.left, state);
+			if(!isInvariant(array)) {
+				Condition field = state.conditions.get(array);
+				if(field == null || !field.operator.equals("HLOAD") || clobbered || !isInvariant(resolve(field.left, state)))
+					return;
+				for(HStoreStmt store : stores)
+					if(!Statements.name(store.f1).equals(resolve(field.left, state)) || store.f2.f0.tokenImage.equals(field.right))
+						return;
+				check.base = resolve(field.left, state);
+				check.field = field.right;
+			}
+			else
+				check.array = array;
+			for(HStoreStmt store : stores)
+				if(store.f2.f0.tokenImage.equals("0"))
+					return;
+			if(isReached(block))
+				checks.add(check);
+		}
+
+		/**
+		 * @return true if every iteration runs the check, and nothing observable happens before it
+		 * in the first one
+		 */
+		private boolean isReached(BasicBlock block) {
+			for(BasicBlock latch : loop.getLatches())
+				if(!tree.dominates(block, latch))
+					return false;
+			Set<BasicBlock> path = new HashSet<BasicBlock>();
+			Deque<BasicBlock> worklist = new ArrayDeque<BasicBlock>();
+			worklist.push(block);
+			while(!worklist.isEmpty()) {
+				BasicBlock current = worklist.pop();
+				if(!path.add(current) || current == loop.getHeader())
+					continue;
+				for(BasicBlock predecessor : current.predecessors)
+					if(loop.contains(predecessor)) {
+						if(tree.dominates(current, predecessor))
+							return false;
+						worklist.push(predecessor);
+					}
+			}
+			for(BasicBlock current : path)
+				for(Statement statement : current.statements)
+					if(statement.containsCall() || statement.getType() == Statement.Type.PrintStmt
+							|| statement.getType() == Statement.Type.HStoreStmt || statement.getType() == Statement.Type.ErrorStmt)
+						return false;
+			return true;
+		}
+
+		/**
+		 * @return the statements run before the loop: the loop test, then a test of every check,
+		 * each jumping to the original loop on failure
+		 */
+		private List<Node> predicate(BasicBlock header, String slow) throws Exception {
+			List<Node> nodes = new ArrayList<Node>();
+			boolean loads = false;
+			for(Check check : checks)
+				loads = loads || check.length == null;
+			if(loads) {
+				for(Statement statement : header.statements)
+					if(statement.getType() != Statement.Type.NoOpStmt)
+						nodes.add(Statements.copy((Stmt) statement.getNode(), 0, new HashMap<String, String>()));
+				((CJumpStmt) ((Stmt) nodes.get(nodes.size() - 1)).f0.choice).f2 = Statements.label(slow);
+			}
+			int temp = Statements.getMaxTemp(procedure) + 1;
+			Map<String, String> lengths = new HashMap<String, String>();
+			Set<String> tested = new HashSet<String>();
+			for(Check check : checks) {
+				String key = check.length != null ? check.length : check.array != null ? check.array : check.base + " " + check.field;
+				if(!tested.add(key + " " + check.bound + " " + check.factor + " " + check.offset))
+					continue;
+				String length = check.length != null ? check.length : lengths.get(key);
+				if(length == null) {
+					String array = check.array;
+					if(array == null) {
+						array = Statements.name(Statements.temp(temp++));
+						nodes.add(Statements.stmt(new HLoadStmt(Statements.temp(array), Statements.temp(check.base), integer(check.field))));
+					}
+					length = Statements.name(Statements.temp(temp++));
+					nodes.add(Statements.stmt(new HLoadStmt(Statements.temp(length), Statements.temp(array), integer("0"))));
+					lengths.put(key, length);
+				}
+				String index = Statements.name(Statements.temp(temp++));
+				if(Character.isDigit(check.bound.charAt(0))) {
+					long value = check.factor * (Long.parseLong(check.bound) - 1) + check.offset;
+					if(value < 0)
+						continue;		/* only indices past the length fail */
+					nodes.add(move(index, simple(Long.toString(value))));
+				}
+				else {
+					if(check.guarded) {
+						String overflow = Statements.name(Statements.temp(temp++));
+						nodes.add(move(overflow, new BinOp(operator("LT"), Statements.temp(check.bound), simple(Long.toString(check.limit)))));
+						nodes.add(Statements.stmt(new CJumpStmt(Statements.temp(overflow), Statements.label(slow))));
+					}
+					nodes.add(move(index, new BinOp(operator("MINUS"), Statements.temp(check.bound), simple("1"))));
+					if(check.factor != 1)
+						nodes.add(move(index, new BinOp(operator("TIMES"), Statements.temp(index), simple(Long.toString(check.factor)))));
+					if(check.offset != 0)
+						nodes.add(move(index, new BinOp(operator(check.offset > 0 ? "PLUS" : "MINUS"), Statements.temp(index),
+								simple(Long.toString(Math.abs(check.offset))))));
+				}
+				String valid = Statements.name(Statements.temp(temp++));
+				nodes.add(move(valid, new BinOp(operator("LT"), Statements.temp(index), new SimpleExp(new NodeChoice(Statements.temp(length))))));
+				nodes.add(Statements.stmt(new CJumpStmt(Statements.temp(valid), Statements.label(slow))));
+			}
+			return nodes;
+		}
+
+		/**
+		 * @return factor and offset of a temp as an affine function of an index, null if it is not one
+		 */
+		private static long[] affine(String value, String index, State state) {
+			if(value.equals(index))
+				return new long[] {1, 0};
+			Range range = state.get(value);
+			if(range.lo == range.hi)
+				return new long[] {0, range.lo};
+			Condition condition = state.conditions.get(value);
+			if(condition == null)
+				return null;
+			if(condition.operator.equals("MOVE"))
+				return affine(condition.left, index, state);
+			long[] left = affine(condition.left, index, state), right = null;
+			if(left == null || condition.operator.equals("HLOAD") || condition.operator.equals("LT")
+					|| (right = affine(condition.right, index, state)) == null)
+				return null;
+			long[] result;
+			if(condition.operator.equals("PLUS"))
+				result = new long[] {left[0] + right[0], left[1] + right[1]};
+			else if(condition.operator.equals("MINUS"))
+				result = new long[] {left[0] - right[0], left[1] - right[1]};
+			else if(left[0] == 0 || right[0] == 0)
+				result = new long[] {left[0] * right[1] + right[0] * left[1], left[1] * right[1]};
+			else
+				return null;
+			for(long part : result)
+				if(Math.abs(part) > Integer.MAX_VALUE)
+					return null;
+			return result;
+		}
+
+		private static String resolve(String value, State state) {
+			Condition condition = state.conditions.get(value);
+			return condition != null && condition.operator.equals("MOVE") ? resolve(condition.left, state) : value;
+		}
+
+		private boolean isInvariant(String value) {
+			return Character.isDigit(value.charAt(0)) || value.startsWith("TEMP ") && !defs.contains(value);
+		}
+
+		private static String fresh(Set<String> labels) {
+			String label;
+			for(int i = 0; labels.contains(label = String.format("BCE%d", i)); ++i) ;
+			labels.add(label);
+			return label;
+		}
+
+		private static Operator operator(String name) {
+			return new Operator(new NodeChoice(new NodeToken(name), Arrays.asList("LT", "PLUS", "MINUS", "TIMES").indexOf(name)));
+		}
+
+		private static IntegerLiteral integer(String value) {
+			return new IntegerLiteral(new NodeToken(value));
+		}
+
+		private static SimpleExp simple(String value) {
+			return new SimpleExp(new NodeChoice(integer(value)));
+		}
+
+		private static Stmt move(String target, Node exp) {
+			return Statements.stmt(new MoveStmt(Statements.temp(target), new Exp(new NodeChoice(exp))));
+		}
+	}
+
+	/**
+	 * a check of a * i + b against a length, i < bound, the length being held by a temp or the
+	 * first word of an array, itself held by a temp or loaded from base + field
+	 */
+	private static final class Check {
+		private Node stmt;
+		private String ok, bound, length, array, base, field;
+		private long factor, offset, limit;
+		private boolean guarded;			/* n - 1 may overflow a * (n - 1) + b */
+	}
+
+	private static String value(SimpleExp exp) {
+		Node node = exp.f0.choice;
+		if(node instanceof Temp)
+			return Statements.name((Temp) node);
+		if(node instanceof IntegerLiteral)
+			return ((IntegerLiteral) node).f0.tokenImage;
+		return ((Label) node).f0.tokenImage;
+	}
+
+	/**
+	 * closed interval of 32 bit values, results overflowing the int range may wrap and are unknown
+	 */
+	private static final class Range {
+		private static final Range top = new Range(Integer.MIN_VALUE, Integer.MAX_VALUE);
+		private long lo, hi;
+
+		private Range(long lo, long hi) {
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		private static Range of(long lo, long hi) {
+			if(lo < Integer.MIN_VALUE || hi > Integer.MAX_VALUE)
+				return top;
+			return new Range(lo, hi);
+		}
+
+		private Range times(Range range) {
+			long[] products = {lo * range.lo, lo * range.hi, hi * range.lo, hi * range.hi};
+			long min = products[0], max = products[0];
+			for(long product : products) {
+				if(Math.abs(product) >= 1L << 62)
+					return top;
+				min = Math.min(min, product);
+				max = Math.max(max, product);
+			}
+			return of(min, max);
+		}
+
+		private Range join(Range range) {
+			return new Range(Math.min(lo, range.lo), Math.max(hi, range.hi));
+		}
+
+		private Range widen(Range range) {
+			return new Range(range.lo < lo ? Integer.MIN_VALUE : lo, range.hi > hi ? Integer.MAX_VALUE : hi);
+		}
+
+		@Override
+		public boolean equals(Object object) {
+			if(!(object instanceof Range))
+				return false;
+			Range range = (Range) object;
+			return lo == range.lo && hi == range.hi;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) (lo * 31 + hi);
+		}
+	}
+
+	/**
+	 * temp = left operator right
+	 */
+	private static final class Condition {
+		private String operator, left, right;
+
+		private Condition(String operator, String left, String right) {
+			this.operator = operator;
+			this.left = left;
+			this.right = right;
+		}
+
+		@Override
+		public boolean equals(Object object) {
+			if(!(object instanceof Condition))
+				return false;
+			Condition condition = (Condition) object;
+			return operator.equals(condition.operator) && left.equals(condition.left) && right.equals(condition.right);
+		}
+
+		@Override
+		public int hashCode() {
+			return (operator + left + right).hashCode();
+		}
+	}
+
+	/**
+	 * temp ranges (missing temps are unknown), comparisons known to hold and temps holding one
+	 */
+	private static final class State {
+		private Map<String, Range> ranges;
+		private Set<String> facts;					/* "a < b" and "a >= b" */
+		private Map<String, Condition> conditions;
+
+		private State(State state) {
+			this.ranges = new HashMap<String, Range>();
+			this.facts = new HashSet<String>();
+			this.conditions = new HashMap<String, Condition>();
+			if(state == null)
+				return;
+			ranges.putAll(state.ranges);
+			facts.addAll(state.facts);
+			conditions.putAll(state.conditions);
+		}
+
+		private Range get(String value) {
+			if(!value.startsWith("TEMP "))
+				return Character.isDigit(value.charAt(0)) ? Range.of(Long.parseLong(value), Long.parseLong(value)) : Range.top;
+			return ranges.containsKey(value) ? ranges.get(value) : Range.top;
+		}
+
+		private Range get(SimpleExp exp) {
+			return get(value(exp));
+		}
+
+		private Range less(String left, String right) {
+			Range a = get(left), b = get(right);
+			if(facts.contains(left + " < " + right) || a.hi < b.lo)
+				return Range.of(1, 1);
+			if(facts.contains(left + " >= " + right) || left.equals(right) || a.lo >= b.hi)
+				return Range.of(0, 0);
+			return Range.of(0, 1);
+		}
+
+		/**
+		 * narrows the state by the outcome of a CJUMP condition: equal to 1 or not
+		 */
+		private void assume(String temp, boolean one) {
+			Range range = get(temp);
+			if(one)
+				narrow(temp, 1, 1);
+			else if(range.lo == 0 && range.hi == 1)
+				narrow(temp, 0, 0);
+			else
+				return;
+			Condition condition = conditions.get(temp);
+			if(condition == null)
+				return;
+			boolean value = get(temp).lo == 1;
+			if(condition.operator.equals("LT")) {
+				String left = condition.left, right = condition.right;
+				Range a = get(left), b = get(right);
+				if(value) {
+					facts.add(left + " < " + right);
+					narrow(left, a.lo, b.hi - 1);
+					narrow(right, a.lo + 1, b.hi);
+				} else {
+					facts.add(left + " >= " + right);
+					narrow(left, b.lo, a.hi);
+					narrow(right, b.lo, a.hi);
+				}
+			}
+			else if(condition.operator.equals("MINUS") && get(condition.left).lo == 1 && get(condition.left).hi == 1
+					&& get(condition.right).lo >= 0 && get(condition.right).hi <= 1)
+				assume(condition.right, !value);		/* 1 - b, b boolean */
+		}
+
+		private void narrow(String value, long lo, long hi) {
+			if(!value.startsWith("TEMP "))
+				return;
+			Range range = get(value);
+			ranges.put(value, new Range(Math.max(range.lo, lo), Math.min(range.hi, hi)));
+		}
+
+		private void kill(String temp) {
+			ranges.remove(temp);
+			conditions.remove(temp);
+			for(Iterator<Map.Entry<String, Condition>> i = conditions.entrySet().iterator(); i.hasNext(); ) {
+				Condition condition = i.next().getValue();
+				if(condition.left.equals(temp) || condition.right.equals(temp))
+					i.remove();
+			}
+			for(Iterator<String> i = facts.iterator(); i.hasNext(); ) {
+				String[] fact = i.next().split(" (<|>=) ");
+				if(fact[0].equals(temp) || fact[1].equals(temp))
+					i.remove();
+			}
+		}
+
+		private State join(State state) {
+			State result = new State(null);
+			for(Map.Entry<String, Range> entry : ranges.entrySet())
+				if(state.ranges.containsKey(entry.getKey()))
+					result.ranges.put(entry.getKey(), entry.getValue().join(state.ranges.get(entry.getKey())));
+			result.facts.addAll(facts);
+			result.facts.retainAll(state.facts);
+			result.conditions.putAll(conditions);
+			result.conditions.entrySet().retainAll(state.conditions.entrySet());
+			return result;
+		}
+
+		/**
+		 * widening at loop headers: bounds still moving go to infinity
+		 */
+		private State widen(State state) {
+			State result = new State(state);
+			for(Map.Entry<String, Range> entry : state.ranges.entrySet())
+				if(ranges.containsKey(entry.getKey()))
+					result.ranges.put(entry.getKey(), ranges.get(entry.getKey()).widen(entry.getValue()));
+			return result;
+		}
+
+		@Override
+		public boolean equals(Object object) {
+			if(!(object instanceof State))
+				return false;
+			State state = (State) object;
+			return ranges.equals(state.ranges) && facts.equals(state.facts) && conditions.equals(state.conditions);
+		}
+
+		@Override
+		public int hashCode() {
+			return ranges.hashCode();
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package optimization;
+
+import dataflow.BasicBlock;
+import dataflow.Procedure;
+import dataflow.Statement;
+import syntaxtree.Temp;
+
+import java.util.*;
+
+/**
+ * Global copy propagation (available copies):
+ *
+ * a copy MOVE TEMP a TEMP b is available at a point if it is executed on every path reaching
+ * that point and neither a nor b is redefined after it. Uses of a are replaced by b wherever
+ * the copy is available, the copies themselves are left to dead code elimination.
+ */
+public final class CopyPropagation extends Pass {
+
+	@Override
+	protected boolean run(Procedure procedure) throws Exception {
+		List<BasicBlock> blocks = procedure.getBlocks();
+		Map<BasicBlock, Map<String, String>> in = new HashMap<BasicBlock, Map<String, String>>();
+		Map<BasicBlock, Map<String, String>> out = new HashMap<BasicBlock, Map<String, String>>();
+
+		/* out sets start from the universal set (null), except for the entry block */
+		for(boolean changed = true; changed; ) {
+			changed = false;
+			for(BasicBlock block : blocks) {
+				Map<String, String> copies = meet(block, blocks.get(0), out);
+				in.put(block, copies);
+				copies = new HashMap<String, String>(copies);
+				for(Statement statement : block.statements)
+					transfer(procedure, statement, copies);
+				if(!copies.equals(out.get(block))) {
+					out.put(block, copies);
+					changed = true;
+				}
+			}
+		}
+
+		boolean changed = false;
+		for(BasicBlock block : blocks) {
+			Map<String, String> copies = new HashMap<String, String>(in.get(block));
+			for(Statement statement : block.statements) {
+				for(Temp use : Statements.getUses(statement.getNode())) {
+					String source = resolve(Statements.name(use), copies);
+					if(!source.equals(Statements.name(use))) {
+						Statements.rename(use, source);
+						changed = true;
+					}
+				}
+				transfer(procedure, statement, copies);
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * intersection of the copies leaving every predecessor
+	 */
+	private static Map<String, String> meet(BasicBlock block, BasicBlock entry,
+											Map<BasicBlock, Map<String, String>> out) {
+		Map<String, String> copies = null;
+		if(block == entry)
+			return new HashMap<String, String>();
+		for(BasicBlock predecessor : block.predecessors) {
+			Map<String, String> available = out.get(predecessor);
+			if(available == null)
+				continue;
+			if(copies == null)
+				copies = new HashMap<String, String>(available);
+			else
+				copies.entrySet().retainAll(available.entrySet());
+		}
+		return copies != null ? copies : new HashMap<String, String>();
+	}
+
+	private static void transfer(Procedure procedure, Statement statement, Map<String, String> copies) {
+		for(String def : statement.def)
+			for(Iterator<Map.Entry<String, String>> i = copies.entrySet().iterator(); i.hasNext(); ) {
+				Map.Entry<String, String> copy = i.next();
+				if(copy.getKey().equals(def) || copy.getValue().equals(def))
+					i.remove();
+			}
+		Temp source = Statements.getCopySource(statement.getNode());
+		if(source == null)
+			return;
+		String target = Statements.name(Statements.getDef(statement.getNode()));
+		int number = Statements.number(source);
+		/* arguments beyond the fourth live on the stack, keep the register copy instead */
+		if(number >= 4 && number < procedure.getArguments())
+			return;
+		if(!target.equals(Statements.name(source)))
+			copies.put(target, Statements.name(source));
+	}
+
+	private static String resolve(String temp, Map<String, String> copies) {
+		for(int i = 0; copies.containsKey(temp) && i < copies.size(); ++i)
+			temp = copies.get(temp);
+		return temp;
+	}
+}
@@ -0,0 +1,110 @@
+package optimization;
+
+import dataflow.BasicBlock;
+import dataflow.DominatorTree;
+import dataflow.Procedure;
+import dataflow.Statement;
+import syntaxtree.*;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static dataflow.Statement.Type;
+
+/**
+ * Removes side effect free statements (MOVE without CALL, HLOAD) whose target is dead,
+ * as well as self copies. Statements of blocks unreachable from the entry go as well (labels
+ * stay on a NOOP), and so do jumps to the statement right after them.
+ *
+ * Deadness comes from strong liveness rather than liveness: a removable statement only reads its
+ * operands if its target is live after it, so a whole chain of dead statements, loop carried
+ * ones included, is removed in a single run.
+ */
+public final class DeadCodeElimination extends Pass {
+
+	@Override
+	protected boolean run(Procedure procedure) throws Exception {
+		DominatorTree tree = new DominatorTree(procedure);
+		Map<BasicBlock, Set<String>> in = analyze(procedure);
+		Set<Node> dead = new HashSet<Node>();
+		for(BasicBlock block : procedure.getBlocks()) {
+			if(!tree.isReachable(block)) {
+				for(Statement statement : block.statements)
+					if(statement.getType() != Type.NoOpStmt)
+						dead.add(statement.getNode());
+				continue;
+			}
+			Set<String> live = out(block, in);
+			for(int i = block.statements.size() - 1; i >= 0; --i) {
+				Statement statement = block.statements.get(i);
+				if(isRemovable(statement)) {
+					Temp source = Statements.getCopySource(statement.getNode());
+					Temp target = Statements.getDef(statement.getNode());
+					if(!live.contains(Statements.name(target)) ||
+							source != null && Statements.number(source) == Statements.number(target))
+						dead.add(statement.getNode());
+				}
+				transfer(statement, live);
+			}
+		}
+		NodeListOptional body = procedure.getBody();
+		for(int i = 0; i + 1 < body.size(); ++i) {
+			Node stmt = Statements.getStmt(body.elementAt(i)).f0.choice;
+			NodeOptional next = Statements.getLabel(body.elementAt(i + 1));
+			Label label = stmt instanceof JumpStmt ? ((JumpStmt) stmt).f1 : stmt instanceof CJumpStmt ? ((CJumpStmt) stmt).f2 : null;
+			if(label != null && next.present() && ((Label) next.node).f0.tokenImage.equals(label.f0.tokenImage))
+				dead.add(Statements.getStmt(body.elementAt(i)));
+		}
+		return Statements.remove(procedure.getBody(), dead);
+	}
+
+	/**
+	 * @return the temps strongly live on entry to each block, starting from none and growing to
+	 * the least fixed point
+	 */
+	private static Map<BasicBlock, Set<String>> analyze(Procedure procedure) {
+		List<BasicBlock> blocks = procedure.getBlocks();
+		Map<BasicBlock, Set<String>> in = new HashMap<BasicBlock, Set<String>>();
+		for(BasicBlock block : blocks)
+			in.put(block, new HashSet<String>());
+		for(boolean changed = true; changed; ) {
+			changed = false;
+			for(int b = blocks.size() - 1; b >= 0; --b) {
+				BasicBlock block = blocks.get(b);
+				Set<String> live = out(block, in);
+				for(int i = block.statements.size() - 1; i >= 0; --i)
+					transfer(block.statements.get(i), live);
+				if(!live.equals(in.get(block))) {
+					in.put(block, live);
+					changed = true;
+				}
+			}
+		}
+		return in;
+	}
+
+	private static Set<String> out(BasicBlock block, Map<BasicBlock, Set<String>> in) {
+		Set<String> live = new HashSet<String>();
+		for(BasicBlock successor : block.successors)
+			live.addAll(in.get(successor));
+		return live;
+	}
+
+	/**
+	 * live before a statement from live after it, a removable statement with a dead target reads nothing
+	 */
+	private static void transfer(Statement statement, Set<String> live) {
+		if(isRemovable(statement) && !live.containsAll(statement.def))
+			return;
+		live.removeAll(statement.def);
+		live.addAll(statement.use);
+	}
+
+	private static boolean isRemovable(Statement statement) {
+		return !statement.containsCall() &&
+				(statement.getType() == Type.MoveStmt || statement.getType() == Type.HLoadStmt);
+	}
+}
@@ -0,0 +1,106 @@
+package optimization;
+
+import dataflow.BasicBlock;
+import dataflow.ControlFlowGraph;
+import dataflow.Procedure;
+import dataflow.Statement;
+import syntaxtree.*;
+
+import java.util.*;
+
+/**
+ * Devirtualization (constant label propagation):
+ *
+ * a temp holds a procedure label on every path reaching a point if it was moved there from the
+ * label, directly or through copies, and not redefined since. A CALL through such a temp becomes
+ * a direct CALL of the procedure, the vtable loads feeding it are left to dead code elimination.
+ *
+ * Labels stored into an object and loaded back are seen as copies once store forwarding has run
+ * on a known allocation site, so virtual calls on objects built in the same procedure resolve.
+ */
+public final class Devirtualization extends Pass {
+	private Set<String> procedures;
+
+	@Override
+	public Set<Procedure> run(ControlFlowGraph cfg, Collection<Procedure> changed) throws Exception {
+		procedures = new HashSet<String>();
+		for(Procedure procedure : cfg.getProcedures())
+			procedures.add(procedure.getName());
+		return super.run(cfg, changed);
+	}
+
+	@Override
+	protected boolean run(Procedure procedure) throws Exception {
+		List<BasicBlock> blocks = procedure.getBlocks();
+		Map<BasicBlock, Map<String, String>> in = new HashMap<BasicBlock, Map<String, String>>();
+		Map<BasicBlock, Map<String, String>> out = new HashMap<BasicBlock, Map<String, String>>();
+
+		/* out sets start from the universal set (null), except for the entry block */
+		for(boolean changed = true; changed; ) {
+			changed = false;
+			for(BasicBlock block : blocks) {
+				Map<String, String> labels = meet(block, blocks.get(0), out);
+				in.put(block, labels);
+				labels = new HashMap<String, String>(labels);
+				for(Statement statement : block.statements)
+					transfer(statement, labels);
+				if(!labels.equals(out.get(block))) {
+					out.put(block, labels);
+					changed = true;
+				}
+			}
+		}
+
+		boolean changed = false;
+		for(BasicBlock block : blocks) {
+			Map<String, String> labels = new HashMap<String, String>(in.get(block));
+			for(Statement statement : block.statements) {
+				Node exp = Statements.getExp(statement.getNode());
+				if(exp instanceof Call && ((Call) exp).f1.f0.choice instanceof Temp) {
+					Call call = (Call) exp;
+					String label = labels.get(Statements.name((Temp) call.f1.f0.choice));
+					if(label != null) {
+						call.f1 = new SimpleExp(new NodeChoice(Statements.label(label)));
+						changed = true;
+					}
+				}
+				transfer(statement, labels);
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * intersection of the labels held leaving every predecessor
+	 */
+	private static Map<String, String> meet(BasicBlock block, BasicBlock entry,
+											Map<BasicBlock, Map<String, String>> out) {
+		Map<String, String> labels = null;
+		if(block == entry)
+			return new HashMap<String, String>();
+		for(BasicBlock predecessor : block.predecessors) {
+			Map<String, String> available = out.get(predecessor);
+			if(available == null)
+				continue;
+			if(labels == null)
+				labels = new HashMap<String, String>(available);
+			else
+				labels.entrySet().retainAll(available.entrySet());
+		}
+		return labels != null ? labels : new HashMap<String, String>();
+	}
+
+	private void transfer(Statement statement, Map<String, String> labels) {
+		for(String def : statement.def)
+			labels.remove(def);
+		Node exp = Statements.getExp(statement.getNode());
+		if(!(exp instanceof SimpleExp))
+			return;
+		String target = Statements.name(Statements.getDef(statement.getNode()));
+		Node value = ((SimpleExp) exp).f0.choice;
+		if(value instanceof Label && procedures.contains(((Label) value).f0.tokenImage))
+			labels.put(target, ((Label) value).f0.tokenImage);
+		else if(value instanceof Temp && labels.containsKey(Statements.name((Temp) value)))
+			labels.put(target, labels.get(Statements.name((Temp) value)));
+	}
+}
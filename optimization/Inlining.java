@@ -0,0 +1,169 @@
+package optimization;
+
+import dataflow.BasicBlock;
+import dataflow.BottomUpScheduler;
+import dataflow.CallGraph;
+import dataflow.ControlFlowGraph;
+import dataflow.Procedure;
+import dataflow.Statement;
+import syntaxtree.*;
+import visitor.DepthFirstVisitor;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Procedure inlining:
+ *
+ * a direct CALL of a small procedure making no calls itself is replaced by a copy of its body.
+ * The arguments are moved to fresh temps standing for its parameters, every temp of the body is
+ * renumbered above the temps of the caller, its labels are renamed to labels unused in the caller,
+ * and its RETURN becomes a MOVE to the target of the CALL.
+ *
+ * Procedures making calls are never inlined, so recursion needs no special care: a caller becomes
+ * a candidate once all of its own calls have been inlined, in the same run since callees are
+ * processed first. Callees are limited in size and callers stop growing past a budget, as every
+ * copy costs registers the allocator may not have.
+ */
+public final class Inlining extends Pass {
+	private static final int calleeSize = 24;		/* statements of an inlined body, RETURN included */
+	private static final int callerSize = 320;		/* statements a caller may grow to */
+
+	private Map<String, Procedure> candidates;
+	private Set<String> procedures;
+
+	/**
+	 * procedures are visited bottom-up on the call graph, so a callee has inlined its own callees
+	 * by the time its callers look at it. Independent procedures are processed concurrently.
+	 * A caller may have a callee to inline once the callee changed, so all of them are visited.
+	 */
+	@Override
+	public Set<Procedure> run(ControlFlowGraph cfg, Collection<Procedure> changed) throws Exception {
+		final CallGraph graph = new CallGraph(cfg);
+		final Set<Procedure> modified = Collections.newSetFromMap(new ConcurrentHashMap<Procedure, Boolean>());
+		candidates = new ConcurrentHashMap<String, Procedure>();
+		procedures = new HashSet<String>();
+		for(Procedure procedure : cfg.getProcedures())
+			procedures.add(procedure.getName());
+		new BottomUpScheduler(graph).run(new BottomUpScheduler.Task() {
+			@Override
+			public void run(Set<Procedure> component) throws Exception {
+				for(Procedure procedure : component) {
+					if(Inlining.this.run(procedure))
+						modified.add(procedure);
+					if(procedure != graph.getMain() && isCandidate(procedure))
+						candidates.put(procedure.getName(), procedure);
+				}
+			}
+		});
+		return modified;
+	}
+
+	@Override
+	protected boolean run(Procedure procedure) throws Exception {
+		int size = size(procedure), temps = Statements.getMaxTemp(procedure) + 1;
+		Set<String> labels = Statements.getLabels(procedure.getBody());
+		labels.addAll(procedures);
+		Map<Node, List<Node>> sites = new HashMap<Node, List<Node>>();
+
+		for(BasicBlock block : procedure.getBlocks())
+			for(Statement statement : block.statements) {
+				Procedure callee = getCallee(statement);
+				if(callee == null || callee == procedure || size + size(callee) > callerSize)
+					continue;
+				sites.put(statement.getNode(), inline((Stmt) statement.getNode(), callee, temps, labels));
+				size += size(callee);
+				temps += Statements.getMaxTemp(callee) + 1;
+			}
+		if(sites.isEmpty())
+			return false;
+
+		List<Node> nodes = new ArrayList<Node>();
+		for(Enumeration<Node> e = procedure.getBody().elements(); e.hasMoreElements(); ) {
+			Node entry = e.nextElement();
+			Stmt stmt = Statements.getStmt(entry);
+			if(!sites.containsKey(stmt)) {
+				nodes.add(entry);
+				continue;
+			}
+			/* the label of the call moves to the first statement of the copy, or to a NOOP if it has one */
+			List<Node> copy = sites.get(stmt);
+			NodeOptional label = Statements.getLabel(entry);
+			if(label.present() && Statements.getLabel(copy.get(0)).present())
+				nodes.add(Statements.entry((Label) label.node, Statements.stmt(new NoOpStmt())));
+			else if(label.present())
+				copy.set(0, Statements.entry((Label) label.node, Statements.getStmt(copy.get(0))));
+			nodes.addAll(copy);
+		}
+		procedure.getBody().nodes.clear();
+		procedure.getBody().nodes.addAll(nodes);
+		return true;
+	}
+
+	/**
+	 * @return the body of a callee copied for a call site: argument moves, statements and the returned value
+	 */
+	private static List<Node> inline(Stmt call, Procedure callee, int temps, Set<String> labels) {
+		MoveStmt move = (MoveStmt) call.f0.choice;
+		List<Node> arguments = ((Call) move.f2.f0.choice).f3.nodes;
+		Map<String, String> renamed = new HashMap<String, String>();
+		for(String label : Statements.getLabels(callee.getBody())) {
+			String name;
+			for(int i = 0; labels.contains(name = String.format("INL%d", i)); ++i) ;
+			labels.add(name);
+			renamed.put(label, name);
+		}
+
+		List<Node> nodes = new ArrayList<Node>();
+		/* parameters get fresh temps as well, the arguments are read before any of them is written */
+		for(int i = 0; i < arguments.size(); ++i)
+			nodes.add(Statements.entry(null, Statements.stmt(new MoveStmt(Statements.temp(temps + i),
+					new Exp(new NodeChoice(new SimpleExp(new NodeChoice(Statements.copy((Temp) arguments.get(i), 0)))))))));
+		for(Enumeration<Node> e = callee.getBody().elements(); e.hasMoreElements(); ) {
+			Node entry = e.nextElement();
+			NodeOptional label = Statements.getLabel(entry);
+			nodes.add(Statements.entry(label.present() ? Statements.label(renamed.get(((Label) label.node).f0.tokenImage)) : null,
+					Statements.copy(Statements.getStmt(entry), temps, renamed)));
+		}
+		SimpleExp value = ((syntaxtree.Procedure) callee.getNode()).f4.f3;
+		nodes.add(Statements.entry(null, Statements.stmt(new MoveStmt(Statements.copy(move.f1, 0), new Exp(new NodeChoice(Statements.copy(value, temps)))))));
+		return nodes;
+	}
+
+	/**
+	 * @return the procedure called by a MOVE t CALL label statement if it can be inlined, null otherwise
+	 */
+	private Procedure getCallee(Statement statement) {
+		Node exp = Statements.getExp(statement.getNode());
+		if(!(exp instanceof Call) || !(((Call) exp).f1.f0.choice instanceof Label))
+			return null;
+		Procedure callee = candidates.get(((Label) ((Call) exp).f1.f0.choice).f0.tokenImage);
+		if(callee == null || callee.getArguments() != ((Call) exp).f3.size())
+			return null;
+		return callee;
+	}
+
+	/**
+	 * reads the syntax tree, the blocks of a procedure are stale once calls were inlined into it
+	 */
+	private static boolean isCandidate(Procedure procedure) throws Exception {
+		if(size(procedure) > calleeSize)
+			return false;
+		CallFinder finder = new CallFinder();
+		procedure.getBody().accept(finder);
+		return !finder.found;
+	}
+
+	private static int size(Procedure procedure) {
+		return procedure.getBody().size() + (procedure.getNode() instanceof syntaxtree.Procedure ? 1 : 0);
+	}
+
+	private static final class CallFinder extends DepthFirstVisitor {
+		private boolean found = false;
+
+		@Override
+		public void visit(Call n) throws Exception {
+			found = true;
+		}
+	}
+}
@@ -0,0 +1,224 @@
+package optimization;
+
+import dataflow.BasicBlock;
+import dataflow.DominatorTree;
+import dataflow.Loop;
+import dataflow.Procedure;
+import dataflow.Statement;
+import syntaxtree.*;
+
+import java.util.*;
+
+/**
+ * Loop invariant code motion:
+ *
+ * a BinOp, constant MOVE or HLOAD inside a natural loop is invariant if the temps it reads are
+ * not written in the loop, or only by invariant statements. It moves to a preheader placed on the
+ * edges entering the loop if its target is written nowhere else in the loop and not live on entry
+ * of the header, and if it either dominates every loop exit or its target is dead after the loop.
+ *
+ * An HLOAD must not fault where the loop did not load: it dominates the exits, or its base is
+ * written once in the procedure and dereferenced in a block dominating the header. The loop may
+ * neither CALL, a call writing any word of the heap, nor HSTORE through another base or at the
+ * same offset. Calls leave the other invariants hoistable, their targets then live across calls
+ * and only take the s-type registers left. Nested loops are handled one level per run, from
+ * the innermost.
+ */
+public final class LoopInvariantCodeMotion extends Pass {
+
+	@Override
+	protected boolean run(Procedure procedure) throws Exception {
+		procedure.analyzeLiveness();
+		DominatorTree tree = new DominatorTree(procedure);
+		Set<String> labels = Statements.getLabels(procedure.getBody());
+		List<Loop> moved = new ArrayList<Loop>();
+		boolean changed = false;
+
+		for(Loop loop : Loop.find(tree)) {
+			boolean nested = false;
+			for(Loop other : moved)
+				nested = nested || loop.contains(other);
+			if(nested)
+				continue;
+			List<Node> invariants = findInvariants(procedure, tree, loop);
+			if(invariants.isEmpty())
+				continue;
+			String label;
+			for(int i = 0; labels.contains(label = String.format("LICM%d", i)); ++i) ;
+			List<Node> entries = getEntries(procedure.getBody(), invariants);
+			if(!Statements.preheader(procedure, loop, invariants, label))
+				continue;
+			labels.add(label);
+			remove(procedure.getBody(), entries);
+			moved.add(loop);
+			changed = true;
+		}
+		return changed;
+	}
+
+	/**
+	 * @return the invariant statements of a loop that can be hoisted, in dominance order
+	 */
+	private static List<Node> findInvariants(Procedure procedure, DominatorTree tree, Loop loop) throws Exception {
+		List<Statement> statements = new ArrayList<Statement>();
+		Map<String, Integer> defs = new HashMap<String, Integer>();
+		boolean clobbered = false;						/* calls in the loop */
+		List<HStoreStmt> stores = new ArrayList<HStoreStmt>();
+		int pressure = 0;								/* temps live at once in the loop */
+		int saved = 0;									/* temps live at once across a call of the loop */
+		for(BasicBlock block : tree.getReversePostorder()) {
+			if(!loop.contains(block))
+				continue;
+			for(Statement statement : block.statements) {
+				statements.add(statement);
+				pressure = Math.max(pressure, statement.in.size());
+				if(statement.containsCall()) {
+					Set<String> across = new HashSet<String>(statement.in);
+					across.retainAll(statement.out);
+					saved = Math.max(saved, across.size());
+				}
+				Temp def = Statements.getDef(statement.getNode());
+				if(def != null)
+					defs.put(Statements.name(def), defs.containsKey(Statements.name(def)) ? defs.get(Statements.name(def)) + 1 : 1);
+				clobbered = clobbered || statement.containsCall();
+				if(statement.getType() == Statement.Type.HStoreStmt)
+					stores.add((HStoreStmt) ((Stmt) statement.getNode()).f0.choice);
+			}
+		}
+
+		Set<String> invariant = new HashSet<String>();		/* targets of hoisted statements */
+		List<Node> hoisted = new ArrayList<Node>();
+		/* every hoisted target stays live through the whole loop: hoist while registers are left */
+		int budget = Procedure.registers.size() - pressure;
+		/* across calls only an s-type register saves the target once, a t-type one costs a save per call */
+		if(clobbered)
+			budget = Math.min(budget, getCalleeSaved() - saved);
+		Set<String> dereferenced = getDereferenced(procedure, tree, loop);
+		for(boolean changed = true; changed && hoisted.size() < budget; ) {
+			changed = false;
+			for(BasicBlock block : tree.getReversePostorder()) {
+				if(!loop.contains(block) || hoisted.size() >= budget)
+					continue;
+				for(Statement statement : block.statements) {
+					Node node = statement.getNode();
+					if(hoisted.size() >= budget || hoisted.contains(node) || !isCandidate(node))
+						continue;
+					String target = Statements.name(Statements.getDef(node));
+					int number = Statements.number(target);
+					if(defs.get(target) != 1 || loop.getHeader().in.contains(target)
+							|| number >= 4 && number < procedure.getArguments())
+						continue;
+					boolean operands = true;
+					for(Temp use : Statements.getUses(node))
+						operands = operands && (!defs.containsKey(Statements.name(use)) || invariant.contains(Statements.name(use)));
+					if(!operands)
+						continue;
+					boolean dominates = true, dead = true;
+					for(BasicBlock exit : loop.getExits()) {
+						dominates = dominates && tree.dominates(block, exit);
+						for(BasicBlock successor : exit.successors)
+							dead = dead && (loop.contains(successor) || !successor.in.contains(target));
+					}
+					if(((Stmt) node).f0.choice instanceof HLoadStmt) {
+						HLoadStmt load = (HLoadStmt) ((Stmt) node).f0.choice;
+						boolean safe = dominates || dereferenced.contains(Statements.name(load.f2)) && !defs.containsKey(Statements.name(load.f2));
+						if(!safe || clobbered || mayAlias(load, stores))
+							continue;
+					}
+					else if(!dominates && !dead)
+						continue;
+					invariant.add(target);
+					hoisted.add(node);
+					changed = true;
+				}
+			}
+		}
+
+		/* restore dominance order, operands are hoisted before their uses */
+		List<Node> ordered = new ArrayList<Node>();
+		for(Statement statement : statements)
+			if(hoisted.contains(statement.getNode()))
+				ordered.add(statement.getNode());
+		return ordered;
+	}
+
+	/**
+	 * @return the temps written at most once in a procedure that are read or stored through in a
+	 * block strictly dominating the loop header, so that the value they hold in the loop is non null
+	 */
+	private static Set<String> getDereferenced(Procedure procedure, DominatorTree tree, Loop loop) throws Exception {
+		Map<String, Integer> defs = new HashMap<String, Integer>();
+		Set<String> bases = new HashSet<String>();
+		for(BasicBlock block : procedure.getBlocks())
+			for(Statement statement : block.statements) {
+				Temp def = Statements.getDef(statement.getNode());
+				if(def != null)
+					defs.put(Statements.name(def), defs.containsKey(Statements.name(def)) ? defs.get(Statements.name(def)) + 1 : 1);
+				if(loop.contains(block) || block == loop.getHeader() || !tree.isReachable(block)
+						|| !tree.dominates(block, loop.getHeader()))
+					continue;
+				Node choice = statement.getNode() instanceof Stmt ? ((Stmt) statement.getNode()).f0.choice : null;
+				if(choice instanceof HLoadStmt)
+					bases.add(Statements.name(((HLoadStmt) choice).f2));
+				else if(choice instanceof HStoreStmt)
+					bases.add(Statements.name(((HStoreStmt) choice).f1));
+			}
+		for(Iterator<String> i = bases.iterator(); i.hasNext(); ) {
+			String base = i.next();
+			if(defs.containsKey(base) && defs.get(base) > 1)
+				i.remove();
+		}
+		return bases;
+	}
+
+	private static int getCalleeSaved() {
+		int count = 0;
+		for(String register : Procedure.registers)
+			if(register.charAt(0) == 's')
+				++count;
+		return count;
+	}
+
+	private static List<Node> getEntries(NodeListOptional body, List<Node> stmts) {
+		List<Node> entries = new ArrayList<Node>();
+		for(Enumeration<Node> e = body.elements(); e.hasMoreElements(); ) {
+			Node entry = e.nextElement();
+			if(stmts.contains(Statements.getStmt(entry)))
+				entries.add(entry);
+		}
+		return entries;
+	}
+
+	/**
+	 * removes the entries the hoisted statements were taken from, labels stay on a NOOP
+	 */
+	private static void remove(NodeListOptional body, List<Node> entries) {
+		for(Node entry : entries) {
+			int index = body.nodes.indexOf(entry);
+			NodeOptional label = Statements.getLabel(entry);
+			if(label.present())
+				body.nodes.set(index, Statements.entry((Label) label.node, Statements.stmt(new NoOpStmt())));
+			else
+				body.nodes.remove(index);
+		}
+	}
+
+	private static boolean isCandidate(Node node) {
+		if(!(node instanceof Stmt))
+			return false;
+		if(((Stmt) node).f0.choice instanceof HLoadStmt)
+			return true;
+		Node exp = Statements.getExp(node);
+		if(exp instanceof BinOp)
+			return true;
+		return exp instanceof SimpleExp && !(((SimpleExp) exp).f0.choice instanceof Temp);
+	}
+
+	private static boolean mayAlias(HLoadStmt load, List<HStoreStmt> stores) {
+		for(HStoreStmt store : stores)
+			if(!Statements.name(store.f1).equals(Statements.name(load.f2))
+					|| store.f2.f0.tokenImage.equals(load.f3.f0.tokenImage))
+				return true;
+		return false;
+	}
+}
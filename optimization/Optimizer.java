@@ -0,0 +1,158 @@
+package optimization;
+
+import dataflow.ControlFlowGraph;
+import dataflow.PopulateControlFlowGraph;
+import dataflow.Procedure;
+import syntaxtree.Goal;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+public final class Optimizer {
+	private static final Logger logger;
+	private static final int maxRounds = 8;		/* whole pipeline repetitions */
+	private static final int maxRuns = 16;		/* consecutive runs of a single pass */
+
+	static {
+		logger = Logger.getLogger(Optimizer.class.getName());
+		logger.setLevel(Level.OFF);
+	}
+
+	private List<Pass> passes;
+	private List<Pass> entryPasses;					/* whole program passes, run once before any other */
+	private List<Pass> programPasses;				/* whole program passes, run on a cleaned up tree */
+
+	public Optimizer(int level) {
+		this(level, true);
+	}
+
+	/**
+	 * an optimizer of procedures seen one at a time when not given the whole program: the passes
+	 * reading other procedures (devirtualization, inlining, the program passes) are left out
+	 */
+	public Optimizer(int level, boolean program) {
+		this.passes = new ArrayList<Pass>();
+		this.entryPasses = new ArrayList<Pass>();
+		this.programPasses = new ArrayList<Pass>();
+		if(level > 0) {
+			if(program)
+				entryPasses.add(new UnreachableProcedureElimination());
+			passes.add(new ValueNumbering());
+			passes.add(new StoreForwarding());
+			if(program)
+				passes.add(new Devirtualization());
+			passes.add(new TailCallElimination());
+			if(program)
+				passes.add(new Inlining());
+			passes.add(new BoundsCheckElimination());
+			passes.add(new LoopInvariantCodeMotion());
+			passes.add(new StrengthReduction());
+			passes.add(new CopyPropagation());
+			passes.add(new DeadCodeElimination());
+		}
+		/* inlining leaves procedures nothing calls anymore */
+		if(level > 0 && program)
+			programPasses.add(new UnreachableProcedureElimination());
+		/* reuses vtables at hand instead of allocating them again, never adding instructions */
+		if(level > 1 && program)
+			programPasses.add(new VtableSharing());
+	}
+
+	/**
+	 * runs the entry passes, the procedure passes until the tree stops changing, then the whole
+	 * program passes, cleaning up again after them
+	 */
+	public void optimize(Goal tree) throws Exception {
+		for(Pass pass : entryPasses)
+			if(pass.run(populate(tree)))
+				logger.log(Level.INFO, pass + " changed the tree");
+		iterate(populate(tree), passes);
+		for(int round = 0; round < maxRounds && iterate(tree, programPasses); ++round)
+			iterate(populate(tree), passes);
+	}
+
+	/**
+	 * runs the procedure passes on a procedure parsed apart from the rest of the program
+	 */
+	public void optimize(syntaxtree.Procedure procedure) throws Exception {
+		iterate(populate(procedure), passes);
+	}
+
+	/**
+	 * runs every pass until the tree stops changing. A pass only runs again on the procedures
+	 * modified since it last ran on them, and a modified procedure alone is populated again, so
+	 * that the analyses of the passes are not repeated on procedures they are done with.
+	 */
+	private void iterate(ControlFlowGraph cfg, List<Pass> passes) throws Exception {
+		PopulateControlFlowGraph populate = new PopulateControlFlowGraph(cfg);
+		Map<Pass, Set<String>> pending = new HashMap<Pass, Set<String>>();	/* procedures to run a pass on */
+		for(Pass pass : passes) {
+			pending.put(pass, new HashSet<String>());
+			for(Procedure procedure : cfg.getProcedures())
+				pending.get(pass).add(procedure.getName());
+		}
+		for(int round = 0; round < maxRounds; ++round) {
+			boolean changed = false;
+			for(Pass pass : passes)
+				for(int run = 0; run < maxRuns && !pending.get(pass).isEmpty(); ++run) {
+					List<Procedure> procedures = new ArrayList<Procedure>();
+					for(Procedure procedure : cfg.getProcedures())
+						if(pending.get(pass).remove(procedure.getName()))
+							procedures.add(procedure);
+					Set<Procedure> modified = pass.run(cfg, procedures);
+					if(modified.isEmpty())
+						break;
+					logger.log(Level.INFO, "Round: " + round + " " + pass + " changed " + modified.size() + " procedures");
+					changed = true;
+					for(Procedure procedure : modified) {
+						populate.repopulate(procedure);
+						for(Pass other : passes)
+							pending.get(other).add(procedure.getName());
+					}
+				}
+			if(!changed)
+				break;
+		}
+	}
+
+	/**
+	 * runs the whole program passes on a freshly populated control flow graph until the tree stops
+	 * changing, they may remove procedures
+	 */
+	private boolean iterate(Goal tree, List<Pass> passes) throws Exception {
+		boolean modified = false;
+		for(int round = 0; round < maxRounds; ++round) {
+			boolean changed = false;
+			for(Pass pass : passes)
+				for(int run = 0; run < maxRuns && pass.run(populate(tree)); ++run) {
+					logger.log(Level.INFO, "Round: " + round + " " + pass + " changed the tree");
+					changed = true;
+				}
+			if(!changed)
+				break;
+			modified = true;
+		}
+		return modified;
+	}
+
+	public static ControlFlowGraph populate(Goal tree) throws Exception {
+		ControlFlowGraph cfg = new ControlFlowGraph();
+		tree.accept(new PopulateControlFlowGraph(cfg));
+		return cfg;
+	}
+
+	/**
+	 * @return the graph of a single procedure, parsed apart from the rest of the program
+	 */
+	public static ControlFlowGraph populate(syntaxtree.Procedure procedure) throws Exception {
+		ControlFlowGraph cfg = new ControlFlowGraph();
+		new PopulateControlFlowGraph(cfg).populate(procedure);
+		return cfg;
+	}
+}
@@ -0,0 +1,47 @@
+package optimization;
+
+import dataflow.ControlFlowGraph;
+import dataflow.Procedure;
+
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * An optimization pass rewrites the syntax tree a control flow graph was populated from.
+ * The optimizer populates again the procedures a run modified, so passes are free to leave their
+ * graphs stale.
+ */
+public abstract class Pass {
+
+	/**
+	 * runs the pass over the whole program, returns true if the syntax tree was modified
+	 */
+	public boolean run(ControlFlowGraph cfg) throws Exception {
+		return !run(cfg, cfg.getProcedures()).isEmpty();
+	}
+
+	/**
+	 * runs the pass over some procedures of a program, the others being unchanged since it last
+	 * ran on them, returns the procedures whose syntax tree was modified
+	 */
+	public Set<Procedure> run(ControlFlowGraph cfg, Collection<Procedure> procedures) throws Exception {
+		Set<Procedure> modified = new LinkedHashSet<Procedure>();
+		for(Procedure procedure : procedures)
+			if(run(procedure))
+				modified.add(procedure);
+		return modified;
+	}
+
+	/**
+	 * runs the pass over a single procedure, returns true if the syntax tree was modified
+	 */
+	protected boolean run(Procedure procedure) throws Exception {
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName();
+	}
+}
@@ -0,0 +1,19 @@
+package optimization;
+
+import dataflow.Procedure;
+
+/**
+ * Round trip through SSA form: every definition gets its own temp and values merged at
+ * join points are connected by copies, splitting unrelated live ranges that shared a temp.
+ */
+public final class SSAConversion extends Pass {
+
+	@Override
+	protected boolean run(Procedure procedure) throws Exception {
+		StaticSingleAssignment ssa = new StaticSingleAssignment(procedure);
+		if(!ssa.construct())
+			return false;
+		ssa.destruct();
+		return true;
+	}
+}
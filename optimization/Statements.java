@@ -0,0 +1,339 @@
+package optimization;
+
+import dataflow.BasicBlock;
+import dataflow.Loop;
+import dataflow.Procedure;
+import dataflow.Statement;
+import syntaxtree.*;
+import visitor.DepthFirstVisitor;
+
+import java.util.*;
+
+/**
+ * syntax tree helpers shared by the optimization passes
+ */
+public final class Statements {
+
+	public static int number(Temp temp) {
+		return Integer.parseInt(temp.f1.f0.tokenImage);
+	}
+
+	public static String name(Temp temp) {
+		return String.format("TEMP %s", temp.f1.f0.tokenImage);
+	}
+
+	public static int number(String name) {
+		return Integer.parseInt(name.substring(name.indexOf(' ') + 1));
+	}
+
+	/**
+	 * redirects a temp occurrence to another temp, keeping the node itself in place
+	 */
+	public static void rename(Temp temp, String name) {
+		temp.f1.f0.tokenImage = name.substring(name.indexOf(' ') + 1);
+	}
+
+	public static Temp temp(int number) {
+		return new Temp(new IntegerLiteral(new NodeToken(Integer.toString(number))));
+	}
+
+	public static Temp temp(String name) {
+		return temp(number(name));
+	}
+
+	/**
+	 * @return the temp written by a statement (MOVE or HLOAD), null otherwise
+	 */
+	public static Temp getDef(Node node) {
+		if(!(node instanceof Stmt))
+			return null;
+		Node choice = ((Stmt) node).f0.choice;
+		if(choice instanceof MoveStmt)
+			return ((MoveStmt) choice).f1;
+		if(choice instanceof HLoadStmt)
+			return ((HLoadStmt) choice).f1;
+		return null;
+	}
+
+	/**
+	 * @return the temp occurrences read by a statement, in source order
+	 */
+	public static List<Temp> getUses(Node node) throws Exception {
+		UseCollector collector = new UseCollector();
+		if(node instanceof StmtExp)
+			((StmtExp) node).f3.accept(collector);
+		else
+			node.accept(collector);
+		return collector.uses;
+	}
+
+	/**
+	 * @return the expression of a MOVE statement, null for any other statement
+	 */
+	public static Node getExp(Node node) {
+		if(!(node instanceof Stmt) || !(((Stmt) node).f0.choice instanceof MoveStmt))
+			return null;
+		return ((MoveStmt) ((Stmt) node).f0.choice).f2.f0.choice;
+	}
+
+	/**
+	 * @return the source temp of a MOVE TEMP a TEMP b copy, null if the statement is not a copy
+	 */
+	public static Temp getCopySource(Node node) {
+		Node exp = getExp(node);
+		if(!(exp instanceof SimpleExp) || !(((SimpleExp) exp).f0.choice instanceof Temp))
+			return null;
+		return (Temp) ((SimpleExp) exp).f0.choice;
+	}
+
+	public static Stmt stmt(Node node) {
+		return new Stmt(new NodeChoice(node));
+	}
+
+	/**
+	 * @return a ( Label() )? Stmt() statement list entry
+	 */
+	public static NodeSequence entry(Label label, Stmt stmt) {
+		NodeSequence entry = new NodeSequence(2);
+		entry.addNode(label != null ? new NodeOptional(label) : new NodeOptional());
+		entry.addNode(stmt);
+		return entry;
+	}
+
+	public static Stmt getStmt(Node entry) {
+		return (Stmt) ((NodeSequence) entry).elementAt(1);
+	}
+
+	public static NodeOptional getLabel(Node entry) {
+		return (NodeOptional) ((NodeSequence) entry).elementAt(0);
+	}
+
+	/**
+	 * removes statements from a statement list, labelled statements are kept as NOOP jump targets
+	 */
+	public static boolean remove(NodeListOptional body, Set<Node> stmts) {
+		boolean changed = false;
+		List<Node> nodes = new ArrayList<Node>();
+		for(Enumeration<Node> e = body.elements(); e.hasMoreElements(); ) {
+			Node entry = e.nextElement();
+			if(!stmts.contains(getStmt(entry))) {
+				nodes.add(entry);
+				continue;
+			}
+			changed = true;
+			if(getLabel(entry).present())
+				nodes.add(entry((Label) getLabel(entry).node, stmt(new NoOpStmt())));
+		}
+		/* an empty statement list yields an empty basic block */
+		if(nodes.isEmpty())
+			nodes.add(entry(null, stmt(new NoOpStmt())));
+		body.nodes.clear();
+		body.nodes.addAll(nodes);
+		return changed;
+	}
+
+	/**
+	 * @return the greatest temp number read or written by a procedure. The syntax tree is read
+	 * rather than the blocks, so the result holds after the body was rewritten.
+	 */
+	public static int getMaxTemp(Procedure procedure) throws Exception {
+		int max = procedure.getArguments() - 1;
+		List<Node> nodes = new ArrayList<Node>();
+		for(Enumeration<Node> e = procedure.getBody().elements(); e.hasMoreElements(); )
+			nodes.add(getStmt(e.nextElement()));
+		if(procedure.getNode() instanceof syntaxtree.Procedure)
+			nodes.add(((syntaxtree.Procedure) procedure.getNode()).f4);
+		for(Node node : nodes) {
+			Temp def = getDef(node);
+			if(def != null)
+				max = Math.max(max, number(def));
+			for(Temp use : getUses(node))
+				max = Math.max(max, number(use));
+		}
+		return max;
+	}
+
+	/**
+	 * @return the labels defined in a statement list
+	 */
+	public static Set<String> getLabels(NodeListOptional body) {
+		Set<String> labels = new HashSet<String>();
+		for(Enumeration<Node> e = body.elements(); e.hasMoreElements(); ) {
+			NodeOptional label = getLabel(e.nextElement());
+			if(label.present())
+				labels.add(((Label) label.node).f0.tokenImage);
+		}
+		return labels;
+	}
+
+	public static Label label(String name) {
+		return new Label(new NodeToken(name));
+	}
+
+	/**
+	 * rebuilds a statement list, placing new entries before or after existing statements.
+	 * Entries placed before a labelled statement go after its label, which moves to a NOOP.
+	 */
+	public static void insert(NodeListOptional body, Map<Node, List<Node>> before, Map<Node, List<Node>> after) {
+		List<Node> nodes = new ArrayList<Node>();
+		for(Enumeration<Node> e = body.elements(); e.hasMoreElements(); ) {
+			Node entry = e.nextElement();
+			Stmt stmt = getStmt(entry);
+			if(before.containsKey(stmt)) {
+				NodeOptional label = getLabel(entry);
+				if(label.present()) {
+					nodes.add(entry((Label) label.node, stmt(new NoOpStmt())));
+					entry = entry(null, stmt);
+				}
+				nodes.addAll(before.get(stmt));
+			}
+			nodes.add(entry);
+			if(after.containsKey(stmt))
+				nodes.addAll(after.get(stmt));
+		}
+		body.nodes.clear();
+		body.nodes.addAll(nodes);
+	}
+
+	/**
+	 * places statements on the edges entering a loop, right before its header: jumps entering the
+	 * loop are redirected to the first of them, which gets a new label.
+	 * @return false if the header is also reached by falling through from inside the loop
+	 */
+	public static boolean preheader(Procedure procedure, Loop loop, List<Node> nodes, String label) {
+		BasicBlock header = loop.getHeader();
+		List<BasicBlock> blocks = procedure.getBlocks();
+		int index = blocks.indexOf(header);
+		if(index > 0 && loop.contains(blocks.get(index - 1)) && fallsThrough(blocks.get(index - 1), header))
+			return false;
+
+		Stmt first = (Stmt) header.statements.get(0).getNode();
+		NodeListOptional body = procedure.getBody();
+		int position = 0;
+		while(getStmt(body.elementAt(position)) != first)
+			++position;
+		NodeOptional target = getLabel(body.elementAt(position));
+		boolean redirected = false;
+		for(BasicBlock entry : loop.getEntries()) {
+			Stmt last = (Stmt) entry.statements.get(entry.statements.size() - 1).getNode();
+			if(last.f0.choice instanceof JumpStmt && target.present()) {
+				((JumpStmt) last.f0.choice).f1 = label(label);
+				redirected = true;
+			}
+			else if(last.f0.choice instanceof CJumpStmt && target.present()
+					&& ((CJumpStmt) last.f0.choice).f2.f0.tokenImage.equals(((Label) target.node).f0.tokenImage)) {
+				((CJumpStmt) last.f0.choice).f2 = label(label);
+				redirected = true;
+			}
+		}
+		List<Node> entries = new ArrayList<Node>();
+		for(Node node : nodes)
+			entries.add(entry(entries.isEmpty() && redirected ? label(label) : null, (Stmt) node));
+		body.nodes.addAll(position, entries);
+		return true;
+	}
+
+	/**
+	 * copies a statement, adding an offset to its temps and renaming the labels it jumps to, labels
+	 * missing from the map keep their name
+	 */
+	public static Stmt copy(Stmt stmt, int temps, Map<String, String> labels) {
+		Node node = stmt.f0.choice;
+		if(node instanceof CJumpStmt) {
+			CJumpStmt cjump = (CJumpStmt) node;
+			node = new CJumpStmt(copy(cjump.f1, temps), label(rename(cjump.f2.f0.tokenImage, labels)));
+		}
+		else if(node instanceof JumpStmt)
+			node = new JumpStmt(label(rename(((JumpStmt) node).f1.f0.tokenImage, labels)));
+		else if(node instanceof HStoreStmt) {
+			HStoreStmt store = (HStoreStmt) node;
+			node = new HStoreStmt(copy(store.f1, temps), copy(store.f2), copy(store.f3, temps));
+		}
+		else if(node instanceof HLoadStmt) {
+			HLoadStmt load = (HLoadStmt) node;
+			node = new HLoadStmt(copy(load.f1, temps), copy(load.f2, temps), copy(load.f3));
+		}
+		else if(node instanceof MoveStmt) {
+			MoveStmt move = (MoveStmt) node;
+			node = new MoveStmt(copy(move.f1, temps), new Exp(new NodeChoice(copy(move.f2.f0.choice, temps), move.f2.f0.which)));
+		}
+		else if(node instanceof PrintStmt)
+			node = new PrintStmt(copy(((PrintStmt) node).f1, temps));
+		else if(node instanceof ErrorStmt)
+			node = new ErrorStmt();
+		else
+			node = new NoOpStmt();
+		return stmt(node);
+	}
+
+	private static String rename(String label, Map<String, String> labels) {
+		return labels.containsKey(label) ? labels.get(label) : label;
+	}
+
+	private static Node copy(Node exp, int temps) {
+		if(exp instanceof HAllocate)
+			return new HAllocate(copy(((HAllocate) exp).f1, temps));
+		if(exp instanceof BinOp) {
+			BinOp binop = (BinOp) exp;
+			return new BinOp(new Operator(new NodeChoice(copy((NodeToken) binop.f0.f0.choice), binop.f0.f0.which)),
+					copy(binop.f1, temps), copy(binop.f2, temps));
+		}
+		if(exp instanceof Call) {
+			Call call = (Call) exp;
+			NodeListOptional arguments = new NodeListOptional();
+			for(Node argument : call.f3.nodes)
+				arguments.addNode(copy((Temp) argument, temps));
+			return new Call(copy(call.f1, temps), arguments);
+		}
+		return copy((SimpleExp) exp, temps);
+	}
+
+	public static SimpleExp copy(SimpleExp exp, int temps) {
+		Node node = exp.f0.choice;
+		if(node instanceof Temp)
+			node = copy((Temp) node, temps);
+		else if(node instanceof IntegerLiteral)
+			node = copy((IntegerLiteral) node);
+		else
+			node = label(((Label) node).f0.tokenImage);
+		return new SimpleExp(new NodeChoice(node, exp.f0.which));
+	}
+
+	public static Temp copy(Temp temp, int temps) {
+		return temp(temps + number(temp));
+	}
+
+	private static IntegerLiteral copy(IntegerLiteral literal) {
+		return new IntegerLiteral(copy(literal.f0));
+	}
+
+	private static NodeToken copy(NodeToken token) {
+		return new NodeToken(token.tokenImage);
+	}
+
+	private static boolean fallsThrough(BasicBlock block, BasicBlock successor) {
+		Statement last = block.statements.get(block.statements.size() - 1);
+		if(last.getType() == Statement.Type.JumpStmt || !block.successors.contains(successor))
+			return false;
+		return last.getType() != Statement.Type.CJumpStmt || block.successors.get(0) == successor;
+	}
+
+	private static final class UseCollector extends DepthFirstVisitor {
+		private List<Temp> uses = new ArrayList<Temp>();
+
+		@Override
+		public void visit(Temp n) throws Exception {
+			uses.add(n);
+		}
+
+		@Override
+		public void visit(HLoadStmt n) throws Exception {
+			n.f2.accept(this);
+		}
+
+		@Override
+		public void visit(MoveStmt n) throws Exception {
+			n.f2.accept(this);
+		}
+	}
+}
@@ -0,0 +1,345 @@
+package optimization;
+
+import dataflow.BasicBlock;
+import dataflow.DominatorTree;
+import dataflow.Procedure;
+import dataflow.Statement;
+import syntaxtree.*;
+
+import java.util.*;
+
+import static dataflow.Statement.Type;
+
+/**
+ * Pruned SSA form of a procedure, built on its syntax tree:
+ *
+ * - construct() gives every definition a fresh temp and places phi functions at the iterated
+ *   dominance frontier of each temp's definitions, wherever the temp is live (Cytron et al.).
+ *   The SSA names are only recorded (getName), the tree is left untouched so that a pass
+ *   finding nothing to do can simply drop this object.
+ * - destruct() renames the temps in the tree and replaces the phi functions with copies at the
+ *   end of the predecessor blocks, splitting critical CJUMP edges with a new block at the end
+ *   of the procedure. Statements added in between must already use SSA names.
+ *
+ * Uses reached by no definition keep the original temp, e.g. procedure arguments.
+ * The control flow graph is left stale by destruct().
+ */
+public final class StaticSingleAssignment {
+	private Procedure procedure;
+	private DominatorTree tree;
+	private Map<BasicBlock, List<Phi>> phis;
+	private Map<Temp, String> names;			/* temp occurrence to SSA name mapping */
+	private Map<String, String> variables;		/* SSA name to temp name before renaming */
+	private Set<String> labels;				/* labels defined in the procedure */
+	private int temps;						/* greatest temp number in use */
+	private int labelCount;
+
+	public StaticSingleAssignment(Procedure procedure) throws Exception {
+		this.procedure = procedure;
+		this.tree = new DominatorTree(procedure);
+		this.phis = new HashMap<BasicBlock, List<Phi>>();
+		this.names = new HashMap<Temp, String>();
+		this.variables = new HashMap<String, String>();
+		this.labels = Statements.getLabels(procedure.getBody());
+		this.temps = Statements.getMaxTemp(procedure);
+		this.labelCount = 0;
+	}
+
+	public DominatorTree getDominatorTree() {
+		return tree;
+	}
+
+	public List<Phi> getPhis(BasicBlock block) {
+		if(!phis.containsKey(block))
+			return Collections.emptyList();
+		return phis.get(block);
+	}
+
+	/**
+	 * @return the SSA name of a temp occurrence in a reachable statement
+	 */
+	public String getName(Temp temp) {
+		return names.containsKey(temp) ? names.get(temp) : Statements.name(temp);
+	}
+
+	/**
+	 * @return the temp an SSA name was made from, the name itself if it was not renamed
+	 */
+	public String getVariable(String name) {
+		return variables.containsKey(name) ? variables.get(name) : name;
+	}
+
+	public String newTemp() {
+		return String.format("TEMP %d", ++temps);
+	}
+
+	public String newLabel() {
+		String label;
+		do
+			label = String.format("SSA%d", labelCount++);
+		while(labels.contains(label));
+		labels.add(label);
+		return label;
+	}
+
+	/**
+	 * @return false if the procedure can not be put in SSA form (entry block is a jump target)
+	 */
+	public boolean construct() throws Exception {
+		if(!tree.getEntry().predecessors.isEmpty())
+			return false;
+
+		Map<String, Set<BasicBlock>> sites = new HashMap<String, Set<BasicBlock>>();
+		for(BasicBlock block : tree.getReversePostorder())
+			for(Statement statement : block.statements) {
+				Temp def = Statements.getDef(statement.getNode());
+				if(def == null)
+					continue;
+				if(!sites.containsKey(Statements.name(def)))
+					sites.put(Statements.name(def), new HashSet<BasicBlock>());
+				sites.get(Statements.name(def)).add(block);
+			}
+
+		Map<BasicBlock, Set<String>> live = liveIn();
+		for(Map.Entry<String, Set<BasicBlock>> entry : sites.entrySet())
+			for(BasicBlock block : tree.getIteratedFrontier(entry.getValue()))
+				if(live.get(block).contains(entry.getKey())) {
+					if(!phis.containsKey(block))
+						phis.put(block, new ArrayList<Phi>());
+					phis.get(block).add(new Phi(entry.getKey()));
+				}
+
+		rename();
+		return true;
+	}
+
+	/**
+	 * temps live on entry of each reachable block
+	 */
+	private Map<BasicBlock, Set<String>> liveIn() throws Exception {
+		Map<BasicBlock, Set<String>> uses = new HashMap<BasicBlock, Set<String>>();
+		Map<BasicBlock, Set<String>> defs = new HashMap<BasicBlock, Set<String>>();
+		Map<BasicBlock, Set<String>> live = new HashMap<BasicBlock, Set<String>>();
+		for(BasicBlock block : tree.getReversePostorder()) {
+			Set<String> use = new HashSet<String>(), def = new HashSet<String>();
+			for(Statement statement : block.statements) {
+				for(Temp temp : Statements.getUses(statement.getNode()))
+					if(!def.contains(Statements.name(temp)))
+						use.add(Statements.name(temp));
+				if(Statements.getDef(statement.getNode()) != null)
+					def.add(Statements.name(Statements.getDef(statement.getNode())));
+			}
+			uses.put(block, use);
+			defs.put(block, def);
+			live.put(block, new HashSet<String>(use));
+		}
+		List<BasicBlock> order = new ArrayList<BasicBlock>(tree.getReversePostorder());
+		Collections.reverse(order);
+		for(boolean changed = true; changed; ) {
+			changed = false;
+			for(BasicBlock block : order) {
+				Set<String> out = new HashSet<String>();
+				for(BasicBlock successor : block.successors)
+					out.addAll(live.get(successor));
+				out.removeAll(defs.get(block));
+				changed = live.get(block).addAll(out) || changed;
+			}
+		}
+		return live;
+	}
+
+	/**
+	 * renames definitions and uses walking the dominator tree, versions of a temp are kept in a stack
+	 */
+	private void rename() throws Exception {
+		Map<String, Deque<String>> versions = new HashMap<String, Deque<String>>();
+		Deque<BasicBlock> stack = new ArrayDeque<BasicBlock>();
+		Map<BasicBlock, List<String>> pushed = new HashMap<BasicBlock, List<String>>();
+		stack.push(tree.getEntry());
+		while(!stack.isEmpty()) {
+			BasicBlock block = stack.pop();
+			if(pushed.containsKey(block)) {
+				/* leaving the subtree: drop the versions it introduced */
+				for(String temp : pushed.remove(block))
+					versions.get(temp).pop();
+				continue;
+			}
+			List<String> introduced = new ArrayList<String>();
+			pushed.put(block, introduced);
+			stack.push(block);
+
+			for(Phi phi : getPhis(block)) {
+				phi.target = push(versions, phi.variable);
+				introduced.add(phi.variable);
+			}
+			for(Statement statement : block.statements) {
+				for(Temp use : Statements.getUses(statement.getNode()))
+					names.put(use, top(versions, Statements.name(use)));
+				Temp def = Statements.getDef(statement.getNode());
+				if(def == null)
+					continue;
+				names.put(def, push(versions, Statements.name(def)));
+				introduced.add(Statements.name(def));
+			}
+			for(BasicBlock successor : new LinkedHashSet<BasicBlock>(block.successors))
+				for(Phi phi : getPhis(successor))
+					phi.operands.put(block, top(versions, phi.variable));
+
+			List<BasicBlock> children = tree.getChildren(block);
+			for(int i = children.size() - 1; i >= 0; --i)
+				stack.push(children.get(i));
+		}
+	}
+
+	private String push(Map<String, Deque<String>> versions, String temp) {
+		if(!versions.containsKey(temp))
+			versions.put(temp, new ArrayDeque<String>());
+		String version = newTemp();
+		versions.get(temp).push(version);
+		variables.put(version, temp);
+		return version;
+	}
+
+	private static String top(Map<String, Deque<String>> versions, String temp) {
+		Deque<String> stack = versions.get(temp);
+		return stack == null || stack.isEmpty() ? temp : stack.peek();
+	}
+
+	/**
+	 * renames the tree and replaces phi functions by copies on the incoming edges
+	 */
+	public void destruct() throws Exception {
+		for(Map.Entry<Temp, String> entry : names.entrySet())
+			Statements.rename(entry.getKey(), entry.getValue());
+
+		Map<Node, List<Node>> before = new HashMap<Node, List<Node>>();
+		Map<Node, List<Node>> after = new HashMap<Node, List<Node>>();
+		List<Node> split = new ArrayList<Node>();
+
+		for(BasicBlock block : tree.getReversePostorder()) {
+			if(getPhis(block).isEmpty())
+				continue;
+			for(BasicBlock predecessor : new LinkedHashSet<BasicBlock>(block.predecessors)) {
+				if(!tree.isReachable(predecessor))
+					continue;
+				List<Node> copies = copies(block, predecessor);
+				if(copies.isEmpty())
+					continue;
+				Statement last = predecessor.statements.get(predecessor.statements.size() - 1);
+				Stmt stmt = (Stmt) last.getNode();
+				if(last.getType() == Type.JumpStmt)
+					append(before, stmt, copies);
+				else if(last.getType() == Type.CJumpStmt && new HashSet<BasicBlock>(predecessor.successors).size() == 1) {
+					/* both edges lead to the block, the condition is read after the copies */
+					Temp condition = ((CJumpStmt) stmt.f0.choice).f1;
+					String temp = newTemp();
+					copies.add(0, copy(temp, Statements.name(condition)));
+					Statements.rename(condition, temp);
+					append(before, stmt, copies);
+				}
+				else if(last.getType() != Type.CJumpStmt || predecessor.successors.get(0) == block)
+					append(after, stmt, copies);		/* fall through edge */
+				else {
+					/* critical jump edge: CJUMP to a new block holding the copies */
+					CJumpStmt cjump = (CJumpStmt) stmt.f0.choice;
+					String label = newLabel();
+					split.add(Statements.entry(Statements.label(label), Statements.stmt(new NoOpStmt())));
+					split.addAll(copies);
+					split.add(Statements.entry(null, Statements.stmt(new JumpStmt(cjump.f2))));
+					cjump.f2 = Statements.label(label);
+				}
+			}
+		}
+
+		NodeListOptional body = procedure.getBody();
+		Statements.insert(body, before, after);
+		if(split.isEmpty())
+			return;
+		/* split blocks are only entered by jumps, step over them */
+		String exit = newLabel();
+		body.addNode(Statements.entry(null, Statements.stmt(new JumpStmt(Statements.label(exit)))));
+		body.nodes.addAll(split);
+		body.addNode(Statements.entry(Statements.label(exit), Statements.stmt(new NoOpStmt())));
+	}
+
+	/**
+	 * phi functions are evaluated in parallel: the copies are sequenced so that no target is written
+	 * while it is still the source of a pending copy, cycles are broken with one fresh temp
+	 */
+	private List<Node> copies(BasicBlock block, BasicBlock predecessor) {
+		Map<String, String> pending = new LinkedHashMap<String, String>();		/* target to source */
+		for(Phi phi : getPhis(block)) {
+			String source = phi.operands.get(predecessor);
+			if(source != null && !source.equals(phi.target))
+				pending.put(phi.target, source);
+		}
+		List<Node> copies = new ArrayList<Node>();
+		while(!pending.isEmpty()) {
+			String ready = null;
+			for(String target : pending.keySet())
+				if(!pending.containsValue(target)) {
+					ready = target;
+					break;
+				}
+			if(ready != null) {
+				copies.add(copy(ready, pending.remove(ready)));
+				continue;
+			}
+			/* every target is still read: save one of them and redirect its readers */
+			String target = pending.keySet().iterator().next();
+			String temp = newTemp();
+			copies.add(copy(temp, target));
+			for(Map.Entry<String, String> entry : pending.entrySet())
+				if(entry.getValue().equals(target))
+					entry.setValue(temp);
+		}
+		return copies;
+	}
+
+	private static Node copy(String target, String source) {
+		Exp exp = new Exp(new NodeChoice(new SimpleExp(new NodeChoice(Statements.temp(source)))));
+		return Statements.entry(null, Statements.stmt(new MoveStmt(Statements.temp(target), exp)));
+	}
+
+	private static <K> void append(Map<K, List<Node>> map, K key, List<Node> nodes) {
+		if(!map.containsKey(key))
+			map.put(key, new ArrayList<Node>());
+		map.get(key).addAll(nodes);
+	}
+
+	/**
+	 * target = phi(operands), one operand per predecessor block
+	 */
+	public static final class Phi {
+		private String variable;						/* temp name before renaming */
+		private String target;
+		private Map<BasicBlock, String> operands;
+
+		private Phi(String variable) {
+			this.variable = variable;
+			this.target = variable;
+			this.operands = new HashMap<BasicBlock, String>();
+		}
+
+		public String getTarget() {
+			return target;
+		}
+
+		public String getVariable() {
+			return variable;
+		}
+
+		public String getOperand(BasicBlock predecessor) {
+			return operands.get(predecessor);
+		}
+
+		public Map<BasicBlock, String> getOperands() {
+			return operands;
+		}
+
+		@Override
+		public String toString() {
+			return target + " = phi" + operands.values();
+		}
+	}
+}
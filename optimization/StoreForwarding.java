@@ -0,0 +1,202 @@
+package optimization;
+
+import dataflow.BasicBlock;
+import dataflow.Procedure;
+import dataflow.Statement;
+import syntaxtree.*;
+
+import java.util.*;
+
+/**
+ * Store to load forwarding (available memory contents):
+ *
+ * after HSTORE TEMP b k TEMP v the word at b+k holds v on every path until b or v is redefined,
+ * a CALL is made or a store that may alias b+k is executed. A load from a location with a known
+ * content becomes a copy of that content, a load also makes its own result known.
+ *
+ * Two locations with the same base temp alias if they have the same offset. Stores through another
+ * base may alias, unless both bases point into objects of different HALLOCATE sites.
+ */
+public final class StoreForwarding extends Pass {
+
+	@Override
+	protected boolean run(Procedure procedure) throws Exception {
+		List<BasicBlock> blocks = procedure.getBlocks();
+		Map<BasicBlock, Memory> in = new HashMap<BasicBlock, Memory>();
+		Map<BasicBlock, Memory> out = new HashMap<BasicBlock, Memory>();
+
+		/* out sets start from the universal set (null), except for the entry block */
+		for(boolean changed = true; changed; ) {
+			changed = false;
+			for(BasicBlock block : blocks) {
+				Memory memory = meet(block, blocks.get(0), out);
+				in.put(block, memory);
+				memory = new Memory(memory);
+				for(Statement statement : block.statements)
+					transfer(statement, memory);
+				if(!memory.equals(out.get(block))) {
+					out.put(block, memory);
+					changed = true;
+				}
+			}
+		}
+
+		boolean changed = false;
+		for(BasicBlock block : blocks) {
+			Memory memory = new Memory(in.get(block));
+			for(Statement statement : block.statements) {
+				Node node = statement.getNode();
+				if(node instanceof Stmt && ((Stmt) node).f0.choice instanceof HLoadStmt) {
+					HLoadStmt load = (HLoadStmt) ((Stmt) node).f0.choice;
+					String value = memory.contents.get(location(load.f2, load.f3));
+					if(value != null) {
+						Exp exp = new Exp(new NodeChoice(new SimpleExp(new NodeChoice(Statements.temp(value)))));
+						((Stmt) node).f0.choice = new MoveStmt(load.f1, exp);
+						changed = true;
+					}
+				}
+				transfer(statement, memory);
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * intersection of the memory contents leaving every predecessor
+	 */
+	private static Memory meet(BasicBlock block, BasicBlock entry, Map<BasicBlock, Memory> out) {
+		Memory memory = null;
+		if(block == entry)
+			return new Memory(null);
+		for(BasicBlock predecessor : block.predecessors) {
+			Memory available = out.get(predecessor);
+			if(available == null)
+				continue;
+			if(memory == null)
+				memory = new Memory(available);
+			else {
+				memory.contents.entrySet().retainAll(available.contents.entrySet());
+				memory.sites.entrySet().retainAll(available.sites.entrySet());
+			}
+		}
+		return memory != null ? memory : new Memory(null);
+	}
+
+	private static void transfer(Statement statement, Memory memory) {
+		Node node = statement.getNode();
+		Node choice = node instanceof Stmt ? ((Stmt) node).f0.choice : null;
+
+		if(statement.containsCall())
+			memory.contents.clear();		/* the callee may write anywhere */
+		if(choice instanceof HStoreStmt) {
+			HStoreStmt store = (HStoreStmt) choice;
+			Location location = location(store.f1, store.f2);
+			for(Iterator<Location> i = memory.contents.keySet().iterator(); i.hasNext(); )
+				if(mayAlias(location, i.next(), memory))
+					i.remove();
+			memory.contents.put(location, Statements.name(store.f3));
+		}
+
+		Statement site = site(statement, memory);
+		for(String def : statement.def) {
+			for(Iterator<Map.Entry<Location, String>> i = memory.contents.entrySet().iterator(); i.hasNext(); ) {
+				Map.Entry<Location, String> content = i.next();
+				if(content.getKey().base.equals(def) || content.getValue().equals(def))
+					i.remove();
+			}
+			memory.sites.remove(def);
+		}
+		if(site != null)
+			memory.sites.put(Statements.name(Statements.getDef(node)), site);
+
+		if(choice instanceof HLoadStmt) {
+			HLoadStmt load = (HLoadStmt) choice;
+			if(!Statements.name(load.f1).equals(Statements.name(load.f2)))
+				memory.contents.put(location(load.f2, load.f3), Statements.name(load.f1));
+		}
+	}
+
+	/**
+	 * @return the allocation site of the object a definition points into, null if unknown.
+	 * Adding an integer to a pointer is assumed to stay within the object (checked array accesses).
+	 */
+	private static Statement site(Statement statement, Memory memory) {
+		Node exp = Statements.getExp(statement.getNode());
+		if(exp instanceof HAllocate)
+			return statement;
+		if(exp instanceof SimpleExp && ((SimpleExp) exp).f0.choice instanceof Temp)
+			return memory.sites.get(Statements.name((Temp) ((SimpleExp) exp).f0.choice));
+		if(!(exp instanceof BinOp) || !((NodeToken) ((BinOp) exp).f0.f0.choice).tokenImage.equals("PLUS"))
+			return null;
+		BinOp binop = (BinOp) exp;
+		Statement left = memory.sites.get(Statements.name(binop.f1)), right = null;
+		if(binop.f2.f0.choice instanceof Temp)
+			right = memory.sites.get(Statements.name((Temp) binop.f2.f0.choice));
+		return left == null ? right : right == null ? left : null;
+	}
+
+	private static boolean mayAlias(Location store, Location location, Memory memory) {
+		/* other bases may point anywhere in the same object */
+		if(store.base.equals(location.base))
+			return store.offset == location.offset;
+		Statement site = memory.sites.get(store.base), other = memory.sites.get(location.base);
+		return site == null || other == null || site == other;
+	}
+
+	private static Location location(Temp base, IntegerLiteral offset) {
+		return new Location(Statements.name(base), Integer.parseInt(offset.f0.tokenImage));
+	}
+
+	/**
+	 * known word contents and allocation sites of the temps pointing to heap objects
+	 */
+	private static final class Memory {
+		private Map<Location, String> contents;
+		private Map<String, Statement> sites;
+
+		private Memory(Memory memory) {
+			this.contents = new HashMap<Location, String>();
+			this.sites = new HashMap<String, Statement>();
+			if(memory == null)
+				return;
+			contents.putAll(memory.contents);
+			sites.putAll(memory.sites);
+		}
+
+		@Override
+		public boolean equals(Object object) {
+			if(!(object instanceof Memory))
+				return false;
+			Memory memory = (Memory) object;
+			return contents.equals(memory.contents) && sites.equals(memory.sites);
+		}
+
+		@Override
+		public int hashCode() {
+			return contents.hashCode() * 31 + sites.hashCode();
+		}
+	}
+
+	private static final class Location {
+		private String base;
+		private int offset;
+
+		private Location(String base, int offset) {
+			this.base = base;
+			this.offset = offset;
+		}
+
+		@Override
+		public boolean equals(Object object) {
+			if(!(object instanceof Location))
+				return false;
+			Location location = (Location) object;
+			return base.equals(location.base) && offset == location.offset;
+		}
+
+		@Override
+		public int hashCode() {
+			return base.hashCode() * 31 + offset;
+		}
+	}
+}
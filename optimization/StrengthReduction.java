@@ -0,0 +1,515 @@
+package optimization;
+
+import dataflow.BasicBlock;
+import dataflow.DominatorTree;
+import dataflow.Loop;
+import dataflow.Procedure;
+import dataflow.Statement;
+import syntaxtree.*;
+
+import java.util.*;
+
+/**
+ * Induction variable strength reduction:
+ *
+ * a basic induction variable is written once in a loop, by i = i + c or i = i - c. A temp written
+ * once in the loop by PLUS, MINUS or TIMES of an induction variable and a loop invariant (a constant
+ * for TIMES) is a derived one, an affine function a * i + b of the basic variable.
+ *
+ * Derived variables computed through a multiply and read by anything else than another derived
+ * variable get a temp of their own, set in a preheader and moved by a * c right after i moves, their
+ * definitions become copies of it. The chain computing them from i goes dead, so does i itself when
+ * the loop test LT i n can be rewritten on the new temp (linear function test replacement), which is
+ * only done when the bounds of i prove that a * i + b does not overflow.
+ *
+ * Calls in the loop only write the heap and their target, which counts as any other definition.
+ * The reduced temps then live across the calls, in the s-type registers saved once per procedure.
+ */
+public final class StrengthReduction extends Pass {
+
+	@Override
+	protected boolean run(Procedure procedure) throws Exception {
+		procedure.analyzeLiveness();
+		DominatorTree tree = new DominatorTree(procedure);
+		Set<String> labels = Statements.getLabels(procedure.getBody());
+		List<Loop> reduced = new ArrayList<Loop>();
+		int temps = Statements.getMaxTemp(procedure);
+		boolean changed = false;
+
+		for(Loop loop : Loop.find(tree)) {
+			boolean nested = false;
+			for(Loop other : reduced)
+				nested = nested || loop.contains(other);
+			if(nested)
+				continue;
+			Reduction reduction = new Reduction(procedure, tree, loop);
+			if(!reduction.analyze())
+				continue;
+			String label;
+			for(int i = 0; labels.contains(label = String.format("SR%d", i)); ++i) ;
+			if(!reduction.apply(temps, label))
+				continue;
+			temps += reduction.roots.size() + reduction.needed.size();
+			labels.add(label);
+			reduced.add(loop);
+			changed = true;
+		}
+		return changed;
+	}
+
+	/**
+	 * an induction variable: basic ones have no base, derived ones are factor * basic + offset
+	 */
+	private static final class Induction {
+		private String temp;
+		private Statement statement;		/* the single definition in the loop */
+		private Induction base, basic;
+		private long factor;
+		private Long offset;				/* null unless a known constant */
+		private boolean scaled;				/* computed through a multiply */
+		private int step;					/* basic variables only */
+		private String reduced;				/* the temp replacing it */
+	}
+
+	private static final class Reduction {
+		private Procedure procedure;
+		private DominatorTree tree;
+		private Loop loop;
+		private Map<Statement, BasicBlock> blocks = new LinkedHashMap<Statement, BasicBlock>();
+		private Map<String, Integer> defs = new HashMap<String, Integer>();
+		private Map<String, List<Statement>> uses = new HashMap<String, List<Statement>>();
+		private Map<String, Integer> constants = new HashMap<String, Integer>();		/* temps set once, to a constant */
+		private Map<String, BasicBlock> sites = new HashMap<String, BasicBlock>();
+		private Map<String, Induction> inductions = new LinkedHashMap<String, Induction>();
+		private List<Induction> roots = new ArrayList<Induction>();
+		private List<Induction> needed = new ArrayList<Induction>();		/* computed in the preheader */
+		private Induction replaced;				/* basic variable freed by the test replacement */
+		private Statement test;
+		private Induction limit;
+
+		private Reduction(Procedure procedure, DominatorTree tree, Loop loop) {
+			this.procedure = procedure;
+			this.tree = tree;
+			this.loop = loop;
+		}
+
+		private boolean analyze() throws Exception {
+			for(BasicBlock block : tree.getReversePostorder()) {
+				for(Statement statement : block.statements) {
+					Temp def = Statements.getDef(statement.getNode());
+					Node exp = Statements.getExp(statement.getNode());
+					if(def != null) {
+						String name = Statements.name(def);
+						constants.put(name, !constants.containsKey(name) && exp instanceof SimpleExp
+								&& ((SimpleExp) exp).f0.choice instanceof IntegerLiteral ? literal((SimpleExp) exp) : null);
+						sites.put(name, block);
+					}
+					if(!loop.contains(block))
+						continue;
+					blocks.put(statement, block);
+					if(def != null)
+						defs.put(Statements.name(def), defs.containsKey(Statements.name(def)) ? defs.get(Statements.name(def)) + 1 : 1);
+					for(Temp use : Statements.getUses(statement.getNode())) {
+						if(!uses.containsKey(Statements.name(use)))
+							uses.put(Statements.name(use), new ArrayList<Statement>());
+						uses.get(Statements.name(use)).add(statement);
+					}
+				}
+			}
+			/* procedure arguments have no definition, the last one seen stands for them */
+			for(int i = 0; i < procedure.getArguments(); ++i)
+				constants.put(String.format("TEMP %d", i), null);
+
+			findBasic();
+			if(inductions.isEmpty())
+				return false;
+			findDerived();
+			findRoots();
+			if(roots.isEmpty())
+				return false;
+			int dead = countDead();
+			findTest();
+			return dead > 0 || replaced != null;
+		}
+
+		private void findBasic() {
+			for(Statement statement : blocks.keySet()) {
+				Node exp = Statements.getExp(statement.getNode());
+				if(!(exp instanceof BinOp))
+					continue;
+				BinOp binop = (BinOp) exp;
+				String target = Statements.name(Statements.getDef(statement.getNode()));
+				String operator = operator(binop);
+				Integer step = constant(binop.f2);
+				if(defs.get(target) != 1 || isStack(target) || step == null || !Statements.name(binop.f1).equals(target)
+						|| !operator.equals("PLUS") && !operator.equals("MINUS"))
+					continue;
+				Induction basic = new Induction();
+				basic.temp = target;
+				basic.statement = statement;
+				basic.basic = basic;
+				basic.factor = 1;
+				basic.offset = 0L;
+				basic.step = operator.equals("PLUS") ? step : -step;
+				inductions.put(target, basic);
+			}
+		}
+
+		/**
+		 * derived variables are found in dominance order, their base always comes first
+		 */
+		private void findDerived() throws Exception {
+			for(boolean changed = true; changed; ) {
+				changed = false;
+				for(BasicBlock block : tree.getReversePostorder()) {
+					if(!loop.contains(block))
+						continue;
+					for(Statement statement : block.statements) {
+						Induction derived = derive(statement);
+						if(derived == null)
+							continue;
+						inductions.put(derived.temp, derived);
+						changed = true;
+					}
+				}
+			}
+		}
+
+		private Induction derive(Statement statement) throws Exception {
+			Node exp = Statements.getExp(statement.getNode());
+			if(!(exp instanceof BinOp))
+				return null;
+			BinOp binop = (BinOp) exp;
+			String target = Statements.name(Statements.getDef(statement.getNode()));
+			String operator = operator(binop);
+			if(inductions.containsKey(target) || defs.get(target) != 1 || isStack(target) || operator.equals("LT"))
+				return null;
+			boolean left = inductions.containsKey(Statements.name(binop.f1));
+			boolean right = binop.f2.f0.choice instanceof Temp && inductions.containsKey(value(binop.f2));
+			if(left == right || right && operator.equals("MINUS"))
+				return null;
+			Induction base = inductions.get(left ? Statements.name(binop.f1) : value(binop.f2));
+			String invariant = left ? value(binop.f2) : Statements.name(binop.f1);
+			if(invariant.startsWith("TEMP ") && defs.containsKey(invariant) || binop.f2.f0.choice instanceof Label)
+				return null;
+			Integer value = constant(left ? binop.f2 : new SimpleExp(new NodeChoice(binop.f1)));
+			if(operator.equals("TIMES") && value == null)
+				return null;
+
+			/* the base must hold its value for the current i: computed earlier in the iteration, i unchanged since */
+			if(base.base != null) {
+				BasicBlock from = blocks.get(base.statement), to = blocks.get(statement);
+				if(!tree.dominates(from, to) || from == to && from.statements.indexOf(base.statement) > from.statements.indexOf(statement))
+					return null;
+				Statement increment = base.basic.statement;
+				if(reaches(base.statement, increment, base.statement) && reaches(increment, statement, base.statement))
+					return null;
+			}
+
+			Induction derived = new Induction();
+			derived.temp = target;
+			derived.statement = statement;
+			derived.base = base;
+			derived.basic = base.basic;
+			derived.scaled = base.scaled || operator.equals("TIMES");
+			if(operator.equals("TIMES")) {
+				derived.factor = base.factor * value;
+				derived.offset = base.offset != null ? base.offset * value : null;
+			}
+			else {
+				derived.factor = base.factor;
+				derived.offset = base.offset != null && value != null ? base.offset + (operator.equals("PLUS") ? value : -value) : null;
+			}
+			/* past the int range the factor only matters modulo 2^32 and the offset is no longer exact */
+			if(derived.factor != (int) derived.factor) {
+				derived.factor = (int) derived.factor;
+				derived.offset = null;
+			}
+			if(derived.offset != null && derived.offset != (int) (long) derived.offset)
+				derived.offset = null;
+			return derived;
+		}
+
+		/**
+		 * scaled variables read by other statements than derived variable definitions get a temp of
+		 * their own, except for constant additions to one that does, kept as they are
+		 */
+		private void findRoots() {
+			Set<Induction> kept = new HashSet<Induction>();
+			for(Induction induction : inductions.values()) {
+				if(!induction.scaled)
+					continue;
+				boolean used = isLiveOut(induction.temp);
+				for(Statement use : getUses(induction.temp))
+					used = used || !isDefinition(use);
+				if(!used)
+					continue;
+				BinOp binop = (BinOp) Statements.getExp(induction.statement.getNode());
+				if(!operator(binop).equals("TIMES") && binop.f2.f0.choice instanceof IntegerLiteral
+						&& (roots.contains(induction.base) || kept.contains(induction.base)))
+					kept.add(induction);
+				else if(step(induction) != Integer.MIN_VALUE)
+					roots.add(induction);
+			}
+			for(Induction root : roots)
+				for(Induction induction = root.base; induction.base != null; induction = induction.base)
+					if(!needed.contains(induction) && !roots.contains(induction))
+						needed.add(induction);
+		}
+
+		/**
+		 * @return the number of derived variable definitions left dead once the roots are reduced
+		 */
+		private int countDead() {
+			Set<Induction> dead = new HashSet<Induction>();
+			for(Induction induction : inductions.values())
+				if(induction.base != null && !roots.contains(induction) && !isLiveOut(induction.temp))
+					dead.add(induction);
+			for(boolean changed = true; changed; ) {
+				changed = false;
+				for(Iterator<Induction> i = dead.iterator(); i.hasNext(); ) {
+					Induction induction = i.next();
+					for(Statement use : getUses(induction.temp)) {
+						Induction defined = isDefinition(use) ? inductions.get(Statements.name(Statements.getDef(use.getNode()))) : null;
+						if(defined == null || !roots.contains(defined) && !dead.contains(defined)) {
+							i.remove();
+							changed = true;
+							break;
+						}
+					}
+				}
+			}
+			return dead.size();
+		}
+
+		/**
+		 * linear function test replacement: LT i n with n constant becomes LT s (a * n + b) when no
+		 * value a * i + b takes overflows. The test must leave the loop from its header, so that i is
+		 * bounded by its constant initial values and n + c - 1.
+		 */
+		private void findTest() throws Exception {
+			BasicBlock header = loop.getHeader();
+			Statement last = header.statements.get(header.statements.size() - 1);
+			if(last.getType() != Statement.Type.CJumpStmt || loop.contains(header.successors.get(1))
+					|| !loop.contains(header.successors.get(0)))
+				return;
+			String condition = Statements.name(((CJumpStmt) ((Stmt) last.getNode()).f0.choice).f1);
+			for(Statement statement : header.statements) {
+				Node exp = Statements.getExp(statement.getNode());
+				if(!(exp instanceof BinOp) || !operator((BinOp) exp).equals("LT")
+						|| !Statements.name(Statements.getDef(statement.getNode())).equals(condition))
+					continue;
+				BinOp binop = (BinOp) exp;
+				Induction basic = inductions.get(Statements.name(binop.f1));
+				Integer bound = constant(binop.f2);
+				String target = Statements.name(Statements.getDef(statement.getNode()));
+				if(basic == null || basic.base != null || bound == null || basic.step <= 0 || defs.get(target) != 1
+						|| isLiveOut(basic.temp) || Statements.number(basic.temp) < procedure.getArguments())
+					continue;
+				long[] range = getRange(basic, bound);
+				if(range == null)
+					continue;
+				for(Induction root : roots) {
+					if(root.basic != basic || root.factor <= 0 || root.offset == null)
+						continue;
+					long value = root.factor * bound + root.offset;
+					if(!fits(root.factor * range[0] + root.offset) || !fits(root.factor * range[1] + root.offset)
+							|| !fits(value) || value < 0)
+						continue;
+					boolean free = true;
+					for(Statement use : getUses(basic.temp))
+						free = free && (use == statement || use == basic.statement || isDefinition(use) && isReduced(use));
+					if(!free)
+						continue;
+					replaced = basic;
+					test = statement;
+					limit = root;
+					return;
+				}
+			}
+		}
+
+		/**
+		 * @return the values a basic variable takes in the loop, null unless it is only set to constants
+		 */
+		private long[] getRange(Induction basic, int bound) {
+			long lo = 0, hi = 0;
+			for(BasicBlock block : procedure.getBlocks())
+				for(Statement statement : block.statements) {
+					Temp def = Statements.getDef(statement.getNode());
+					if(def == null || !Statements.name(def).equals(basic.temp) || statement == basic.statement)
+						continue;
+					Node exp = Statements.getExp(statement.getNode());
+					if(!(exp instanceof SimpleExp) || !(((SimpleExp) exp).f0.choice instanceof IntegerLiteral))
+						return null;
+					lo = Math.min(lo, literal((SimpleExp) exp));
+					hi = Math.max(hi, literal((SimpleExp) exp));
+				}
+			return new long[]{lo, Math.max(hi, (long) bound + basic.step - 1)};
+		}
+
+		/**
+		 * @return true if the statement defines a derived variable that is reduced or left dead
+		 */
+		private boolean isReduced(Statement statement) {
+			Induction induction = inductions.get(Statements.name(Statements.getDef(statement.getNode())));
+			if(roots.contains(induction))
+				return true;
+			/* its value comes from i alone and nothing but reduced variables reads it */
+			boolean free = !isLiveOut(induction.temp);
+			for(Statement use : getUses(induction.temp))
+				free = free && isDefinition(use) && isReduced(use);
+			return free;
+		}
+
+		private boolean apply(int temps, String label) {
+			List<Node> preheader = new ArrayList<Node>();
+			Map<Induction, String> initial = new HashMap<Induction, String>();
+			for(Induction induction : inductions.values()) {
+				if(!roots.contains(induction) && !needed.contains(induction))
+					continue;
+				String temp = String.format("TEMP %d", ++temps);
+				initial.put(induction, temp);
+				BinOp binop = (BinOp) Statements.getExp(induction.statement.getNode());
+				String base = induction.base.base != null ? initial.get(induction.base) : induction.base.temp;
+				boolean left = Statements.name(binop.f1).equals(induction.base.temp);
+				BinOp exp = new BinOp(operator(operator(binop)),
+						Statements.temp(left ? base : Statements.name(binop.f1)),
+						left ? copy(binop.f2) : new SimpleExp(new NodeChoice(Statements.temp(base))));
+				preheader.add(move(temp, exp));
+				if(roots.contains(induction))
+					induction.reduced = temp;
+			}
+			if(!Statements.preheader(procedure, loop, preheader, label))
+				return false;
+
+			Map<Node, List<Node>> after = new HashMap<Node, List<Node>>();
+			for(Induction root : roots) {
+				Node increment = root.basic.statement.getNode();
+				if(!after.containsKey(increment))
+					after.put(increment, new ArrayList<Node>());
+				int step = step(root);
+				if(step != 0)
+					after.get(increment).add(Statements.entry(null, move(root.reduced,
+							new BinOp(operator(step > 0 ? "PLUS" : "MINUS"), Statements.temp(root.reduced), integer(Math.abs(step))))));
+				((Stmt) root.statement.getNode()).f0.choice = move(root.temp,
+						new SimpleExp(new NodeChoice(Statements.temp(root.reduced)))).f0.choice;
+			}
+			if(replaced != null) {
+				Stmt stmt = (Stmt) test.getNode();
+				String target = Statements.name(((MoveStmt) stmt.f0.choice).f1);
+				long bound = limit.factor * constant(((BinOp) Statements.getExp(stmt)).f2) + limit.offset;
+				stmt.f0.choice = move(target, new BinOp(operator("LT"), Statements.temp(limit.reduced), integer((int) bound))).f0.choice;
+			}
+			Statements.insert(procedure.getBody(), new HashMap<Node, List<Node>>(), after);
+			if(replaced != null)
+				Statements.remove(procedure.getBody(), Collections.singleton(replaced.statement.getNode()));
+			return true;
+		}
+
+		private int step(Induction induction) {
+			return (int) (induction.factor * induction.basic.step);
+		}
+
+		/**
+		 * @return true if a path inside the loop leads from one statement to another without going
+		 * through a third one
+		 */
+		private boolean reaches(Statement from, Statement to, Statement barrier) {
+			Deque<BasicBlock> worklist = new ArrayDeque<BasicBlock>();
+			Set<BasicBlock> visited = new HashSet<BasicBlock>();
+			BasicBlock block = blocks.get(from);
+			int index = block.statements.indexOf(from) + 1;
+			while(true) {
+				boolean blocked = false;
+				for(int i = index; i < block.statements.size() && !blocked; ++i) {
+					if(block.statements.get(i) == to)
+						return true;
+					blocked = block.statements.get(i) == barrier;
+				}
+				if(!blocked)
+					for(BasicBlock successor : block.successors)
+						if(loop.contains(successor) && visited.add(successor))
+							worklist.push(successor);
+				if(worklist.isEmpty())
+					return false;
+				block = worklist.pop();
+				index = 0;
+			}
+		}
+
+		private List<Statement> getUses(String temp) {
+			return uses.containsKey(temp) ? uses.get(temp) : new ArrayList<Statement>();
+		}
+
+		/**
+		 * @return true if the statement is the definition of a derived variable
+		 */
+		private boolean isDefinition(Statement statement) {
+			Temp def = Statements.getDef(statement.getNode());
+			Induction induction = def != null ? inductions.get(Statements.name(def)) : null;
+			return induction != null && induction.base != null && induction.statement == statement;
+		}
+
+		private boolean isLiveOut(String temp) {
+			for(BasicBlock exit : loop.getExits())
+				for(BasicBlock successor : exit.successors)
+					if(!loop.contains(successor) && successor.in.contains(temp))
+						return true;
+			return false;
+		}
+
+		private boolean isStack(String temp) {
+			int number = Statements.number(temp);
+			return number >= 4 && number < procedure.getArguments();
+		}
+
+		private Integer constant(SimpleExp exp) {
+			if(exp.f0.choice instanceof IntegerLiteral)
+				return literal(exp);
+			if(exp.f0.choice instanceof Temp && !defs.containsKey(value(exp)) && constants.get(value(exp)) != null
+					&& tree.dominates(sites.get(value(exp)), loop.getHeader()))
+				return constants.get(value(exp));
+			return null;
+		}
+	}
+
+	private static boolean fits(long value) {
+		return value == (int) value;
+	}
+
+	private static int literal(SimpleExp exp) {
+		return Integer.parseInt(((IntegerLiteral) exp.f0.choice).f0.tokenImage);
+	}
+
+	private static String value(SimpleExp exp) {
+		Node node = exp.f0.choice;
+		if(node instanceof Temp)
+			return Statements.name((Temp) node);
+		if(node instanceof IntegerLiteral)
+			return ((IntegerLiteral) node).f0.tokenImage;
+		return ((Label) node).f0.tokenImage;
+	}
+
+	private static String operator(BinOp binop) {
+		return ((NodeToken) binop.f0.f0.choice).tokenImage;
+	}
+
+	private static Operator operator(String name) {
+		return new Operator(new NodeChoice(new NodeToken(name), Arrays.asList("LT", "PLUS", "MINUS", "TIMES").indexOf(name)));
+	}
+
+	private static SimpleExp copy(SimpleExp exp) {
+		if(exp.f0.choice instanceof Temp)
+			return new SimpleExp(new NodeChoice(Statements.temp(value(exp))));
+		return integer(literal(exp));
+	}
+
+	private static SimpleExp integer(int value) {
+		return new SimpleExp(new NodeChoice(new IntegerLiteral(new NodeToken(Integer.toString(value)))));
+	}
+
+	private static Stmt move(String target, Node exp) {
+		return Statements.stmt(new MoveStmt(Statements.temp(target), new Exp(new NodeChoice(exp))));
+	}
+}
@@ -0,0 +1,114 @@
+package optimization;
+
+import dataflow.Procedure;
+import syntaxtree.*;
+
+import java.util.*;
+
+/**
+ * Self tail call elimination:
+ *
+ * a MOVE t CALL p statement in procedure p is a tail call when its result reaches RETURN
+ * unchanged, through NOOP, JUMP and copies of t only. It becomes a parallel move of the
+ * arguments to the parameter temps, through fresh temps, and a JUMP back to the first statement
+ * of the body, so the recursion runs in a single frame.
+ *
+ * Only direct calls are seen, a call through a vtable may reach an override in a subclass.
+ * Devirtualization runs first and turns the calls it can prove into direct ones.
+ */
+public final class TailCallElimination extends Pass {
+
+	@Override
+	protected boolean run(Procedure procedure) throws Exception {
+		if(!(procedure.getNode() instanceof syntaxtree.Procedure))
+			return false;
+		NodeListOptional body = procedure.getBody();
+		SimpleExp value = ((syntaxtree.Procedure) procedure.getNode()).f4.f3;
+		if(!(value.f0.choice instanceof Temp))
+			return false;
+
+		List<Stmt> calls = new ArrayList<Stmt>();
+		for(int i = 0; i < body.size(); ++i) {
+			Stmt stmt = Statements.getStmt(body.elementAt(i));
+			Node exp = Statements.getExp(stmt);
+			if(!(exp instanceof Call) || !(((Call) exp).f1.f0.choice instanceof Label))
+				continue;
+			Call call = (Call) exp;
+			if(((Label) call.f1.f0.choice).f0.tokenImage.equals(procedure.getName())
+					&& call.f3.size() == procedure.getArguments()
+					&& returns(body, i + 1, Statements.name(Statements.getDef(stmt)), Statements.name((Temp) value.f0.choice)))
+				calls.add(stmt);
+		}
+		if(calls.isEmpty())
+			return false;
+
+		/* the entry block keeps no predecessors, the loop starts right after it */
+		Set<String> labels = Statements.getLabels(body);
+		NodeOptional first = Statements.getLabel(body.elementAt(0));
+		String entry;
+		if(first.present())
+			entry = ((Label) first.node).f0.tokenImage;
+		else {
+			for(int i = 0; labels.contains(entry = String.format("TC%d", i)); ++i) ;
+			body.nodes.set(0, Statements.entry(Statements.label(entry), Statements.getStmt(body.elementAt(0))));
+		}
+		body.nodes.add(0, Statements.entry(null, Statements.stmt(new NoOpStmt())));
+
+		int temps = Statements.getMaxTemp(procedure);
+		Map<Node, List<Node>> before = new HashMap<Node, List<Node>>();
+		for(Stmt stmt : calls) {
+			List<Node> arguments = ((Call) Statements.getExp(stmt)).f3.nodes;
+			List<Node> moves = new ArrayList<Node>(), parameters = new ArrayList<Node>();
+			for(int i = 0; i < arguments.size(); ++i) {
+				int argument = Statements.number((Temp) arguments.get(i));
+				/* a parameter passed along unchanged needs no move */
+				if(argument == i)
+					continue;
+				moves.add(Statements.entry(null, move(++temps, argument)));
+				parameters.add(Statements.entry(null, move(i, temps)));
+			}
+			moves.addAll(parameters);
+			moves.add(Statements.entry(null, Statements.stmt(new JumpStmt(Statements.label(entry)))));
+			before.put(stmt, moves);
+		}
+		Statements.insert(body, before, new HashMap<Node, List<Node>>());
+		Statements.remove(body, new HashSet<Node>(calls));
+		return true;
+	}
+
+	/**
+	 * @return true if the value of a temp at a position of the body is the one returned, following
+	 * NOOP, JUMP and copies of it to the end of the body
+	 */
+	private static boolean returns(NodeListOptional body, int position, String result, String returned) {
+		Map<String, Integer> targets = new HashMap<String, Integer>();
+		for(int i = 0; i < body.size(); ++i) {
+			NodeOptional label = Statements.getLabel(body.elementAt(i));
+			if(label.present())
+				targets.put(((Label) label.node).f0.tokenImage, i);
+		}
+		Set<Integer> visited = new HashSet<Integer>();
+		while(position < body.size()) {
+			if(!visited.add(position))
+				return false;
+			Stmt stmt = Statements.getStmt(body.elementAt(position));
+			Node node = stmt.f0.choice;
+			if(node instanceof JumpStmt) {
+				position = targets.get(((JumpStmt) node).f1.f0.tokenImage);
+				continue;
+			}
+			Temp source = Statements.getCopySource(stmt);
+			if(source != null && Statements.name(source).equals(result))
+				result = Statements.name(Statements.getDef(stmt));
+			else if(!(node instanceof NoOpStmt))
+				return false;
+			++position;
+		}
+		return result.equals(returned);
+	}
+
+	private static Stmt move(int target, int source) {
+		return Statements.stmt(new MoveStmt(Statements.temp(target),
+				new Exp(new NodeChoice(new SimpleExp(new NodeChoice(Statements.temp(source)))))));
+	}
+}
@@ -0,0 +1,34 @@
+package optimization;
+
+import dataflow.CallGraph;
+import dataflow.ControlFlowGraph;
+import dataflow.Procedure;
+import syntaxtree.Goal;
+import syntaxtree.Node;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Removes the procedures whose label is never used by MAIN or by a procedure it reaches, so that
+ * neither the other passes nor liveness analysis and register allocation see them.
+ */
+public final class UnreachableProcedureElimination extends Pass {
+
+	@Override
+	public boolean run(ControlFlowGraph cfg) throws Exception {
+		CallGraph graph = new CallGraph(cfg);
+		Set<Procedure> reachable = graph.getReachable();
+		Goal goal = (Goal) graph.getMain().getNode();
+		List<Node> nodes = new ArrayList<Node>();
+		for(Procedure procedure : cfg.getProcedures())
+			if(procedure != graph.getMain() && reachable.contains(procedure))
+				nodes.add(procedure.getNode());
+		if(nodes.size() == goal.f3.size())
+			return false;
+		goal.f3.nodes.clear();
+		goal.f3.nodes.addAll(nodes);
+		return true;
+	}
+}
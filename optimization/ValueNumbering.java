@@ -0,0 +1,248 @@
+package optimization;
+
+import dataflow.BasicBlock;
+import dataflow.DominatorTree;
+import dataflow.Procedure;
+import dataflow.Statement;
+import syntaxtree.*;
+
+import java.util.*;
+
+/**
+ * Dominator based global value numbering (Briggs, Cooper and Simpson, "Value Numbering"):
+ *
+ * walks the dominator tree of the SSA form with a scoped table of available expressions.
+ * A BinOp or HLOAD whose expression is already computed in a dominating statement is
+ * replaced by a copy of that statement's target.
+ *
+ * Loads are keyed by the memory state, which changes at every HSTORE and CALL. A block starts in
+ * the state its immediate dominator ends with if no path between the two may write memory.
+ *
+ * The SSA form is only used for the analysis: a copy is written with the original temps, and only
+ * where the leader's temp still holds the leader's version, so no phi copies are ever inserted.
+ */
+public final class ValueNumbering extends Pass {
+	private StaticSingleAssignment ssa;
+	private Map<String, String> numbers;			/* SSA name to value number (leader name) */
+	private Map<String, String> available;			/* expression key to leader name */
+	private Map<String, Deque<String>> reaching;	/* temp to its SSA versions in scope */
+	private Map<BasicBlock, Set<String>> merges;	/* temps redefined on some path into each block */
+	private Map<String, String> merged;				/* markers of merges without a phi to their temp */
+	private Map<BasicBlock, Integer> memory;		/* memory state at the end of each block */
+	private Set<BasicBlock> clobbering;				/* blocks containing HSTORE or CALL */
+	private int states;
+
+	@Override
+	protected boolean run(Procedure procedure) throws Exception {
+		ssa = new StaticSingleAssignment(procedure);
+		if(!ssa.construct())
+			return false;
+		numbers = new HashMap<String, String>();
+		available = new HashMap<String, String>();
+		reaching = new HashMap<String, Deque<String>>();
+		merges = getMerges(ssa.getDominatorTree());
+		merged = new HashMap<String, String>();
+		memory = new HashMap<BasicBlock, Integer>();
+		clobbering = new HashSet<BasicBlock>();
+		states = 0;
+		for(BasicBlock block : procedure.getBlocks())
+			for(Statement statement : block.statements)
+				if(clobbers(statement))
+					clobbering.add(block);
+
+		DominatorTree tree = ssa.getDominatorTree();
+		boolean changed = false;
+		Deque<BasicBlock> stack = new ArrayDeque<BasicBlock>();
+		Map<BasicBlock, List<String>> scopes = new HashMap<BasicBlock, List<String>>();
+		Map<BasicBlock, List<String>> versions = new HashMap<BasicBlock, List<String>>();
+		stack.push(tree.getEntry());
+		while(!stack.isEmpty()) {
+			BasicBlock block = stack.pop();
+			if(scopes.containsKey(block)) {
+				/* leaving the subtree: expressions and versions defined in it are out of scope */
+				for(String key : scopes.remove(block))
+					available.remove(key);
+				for(String version : versions.remove(block))
+					reaching.get(getVariable(version)).pop();
+				continue;
+			}
+			List<String> scope = new ArrayList<String>(), defined = new ArrayList<String>();
+			scopes.put(block, scope);
+			versions.put(block, defined);
+			stack.push(block);
+			changed = number(block, tree, scope, defined) || changed;
+			List<BasicBlock> children = tree.getChildren(block);
+			for(int i = children.size() - 1; i >= 0; --i)
+				stack.push(children.get(i));
+		}
+		return changed;
+	}
+
+	private boolean number(BasicBlock block, DominatorTree tree, List<String> scope, List<String> defined) throws Exception {
+		BasicBlock dominator = tree.getImmediateDominator(block);
+		int state = dominator != null && isClear(dominator, block) ? memory.get(dominator) : states++;
+
+		for(StaticSingleAssignment.Phi phi : ssa.getPhis(block)) {
+			/* a phi merging a single value is that value */
+			Set<String> values = new HashSet<String>();
+			for(BasicBlock predecessor : block.predecessors)
+				values.add(numbers.get(phi.getOperand(predecessor)));
+			numbers.put(phi.getTarget(), values.size() == 1 && !values.contains(null) ?
+					values.iterator().next() : phi.getTarget());
+			define(phi.getTarget(), defined);
+		}
+		/* pruned SSA has no phi where the temp is dead, it still no longer holds the dominating version */
+		for(String variable : merges.get(block)) {
+			boolean phi = false;
+			for(StaticSingleAssignment.Phi other : ssa.getPhis(block))
+				phi = phi || other.getVariable().equals(variable);
+			if(phi)
+				continue;
+			String marker = String.format("merge %d %s", block.getId(), variable);
+			merged.put(marker, variable);
+			define(marker, defined);
+		}
+
+		boolean changed = false;
+		for(Statement statement : block.statements) {
+			Stmt stmt = statement.getNode() instanceof Stmt ? (Stmt) statement.getNode() : null;
+			if(clobbers(statement))
+				state = states++;
+			Temp def = Statements.getDef(stmt);
+			if(def == null)
+				continue;
+			String target = ssa.getName(def);
+			String key = key(stmt, state);
+			String leader = key == null || key.startsWith("=") ? null : available.get(key);
+			if(key == null)
+				numbers.put(target, target);
+			else if(key.startsWith("="))
+				numbers.put(target, key.substring(1));		/* copy */
+			else if(leader == null) {
+				available.put(key, target);
+				scope.add(key);
+				numbers.put(target, target);
+			}
+			else {
+				numbers.put(target, leader);
+				/* constants are as cheap as copies */
+				if(!(Statements.getExp(stmt) instanceof SimpleExp) && isCurrent(leader)) {
+					Temp source = Statements.temp(ssa.getVariable(leader));
+					stmt.f0.choice = new MoveStmt(def, new Exp(new NodeChoice(new SimpleExp(new NodeChoice(source)))));
+					changed = true;
+				}
+			}
+			define(target, defined);
+		}
+		memory.put(block, state);
+		return changed;
+	}
+
+	/**
+	 * @return the expression key of a definition, "=name" for copies, null for unique values
+	 */
+	private String key(Stmt stmt, int state) throws Exception {
+		Node choice = stmt.f0.choice;
+		if(choice instanceof HLoadStmt) {
+			HLoadStmt load = (HLoadStmt) choice;
+			return String.format("HLOAD %s %s @%d", value(load.f2), load.f3.f0.tokenImage, state);
+		}
+		Node exp = Statements.getExp(stmt);
+		if(exp instanceof SimpleExp) {
+			Node simple = ((SimpleExp) exp).f0.choice;
+			return simple instanceof Temp ? "=" + value((Temp) simple) : value((SimpleExp) exp);
+		}
+		if(exp instanceof BinOp) {
+			BinOp binop = (BinOp) exp;
+			String operator = ((NodeToken) binop.f0.f0.choice).tokenImage;
+			String left = value(binop.f1), right = value(binop.f2);
+			/* commutative operators: order operands */
+			if((operator.equals("PLUS") || operator.equals("TIMES")) && left.compareTo(right) > 0) {
+				String swap = left;
+				left = right;
+				right = swap;
+			}
+			return String.format("%s %s %s", operator, left, right);
+		}
+		return null;
+	}
+
+	private void define(String version, List<String> defined) {
+		String variable = getVariable(version);
+		if(!reaching.containsKey(variable))
+			reaching.put(variable, new ArrayDeque<String>());
+		reaching.get(variable).push(version);
+		defined.add(version);
+	}
+
+	/**
+	 * @return true if the temp the SSA name was made from holds that version here
+	 */
+	private boolean isCurrent(String version) {
+		Deque<String> versions = reaching.get(ssa.getVariable(version));
+		return versions != null && version.equals(versions.peek());
+	}
+
+	private String getVariable(String version) {
+		return merged.containsKey(version) ? merged.get(version) : ssa.getVariable(version);
+	}
+
+	/**
+	 * @return for each reachable block, the temps defined in some block it is in the iterated dominance frontier of
+	 */
+	private static Map<BasicBlock, Set<String>> getMerges(DominatorTree tree) {
+		Map<String, Set<BasicBlock>> sites = new HashMap<String, Set<BasicBlock>>();
+		Map<BasicBlock, Set<String>> merges = new HashMap<BasicBlock, Set<String>>();
+		for(BasicBlock block : tree.getReversePostorder()) {
+			merges.put(block, new TreeSet<String>());
+			for(Statement statement : block.statements) {
+				Temp def = Statements.getDef(statement.getNode());
+				if(def == null)
+					continue;
+				if(!sites.containsKey(Statements.name(def)))
+					sites.put(Statements.name(def), new HashSet<BasicBlock>());
+				sites.get(Statements.name(def)).add(block);
+			}
+		}
+		for(Map.Entry<String, Set<BasicBlock>> entry : sites.entrySet())
+			for(BasicBlock block : tree.getIteratedFrontier(entry.getValue()))
+				if(merges.containsKey(block))
+					merges.get(block).add(entry.getKey());
+		return merges;
+	}
+
+	private String value(Temp temp) {
+		String name = ssa.getName(temp);
+		return numbers.containsKey(name) ? numbers.get(name) : name;
+	}
+
+	private String value(SimpleExp exp) {
+		Node node = exp.f0.choice;
+		if(node instanceof Temp)
+			return value((Temp) node);
+		if(node instanceof IntegerLiteral)
+			return "#" + ((IntegerLiteral) node).f0.tokenImage;
+		return "@" + ((Label) node).f0.tokenImage;
+	}
+
+	/**
+	 * @return true if no block on a path from the dominator to the block may write memory
+	 */
+	private boolean isClear(BasicBlock dominator, BasicBlock block) {
+		Set<BasicBlock> visited = new HashSet<BasicBlock>();
+		Deque<BasicBlock> worklist = new ArrayDeque<BasicBlock>(block.predecessors);
+		while(!worklist.isEmpty()) {
+			BasicBlock current = worklist.poll();
+			if(current == dominator || !visited.add(current))
+				continue;
+			if(clobbering.contains(current))
+				return false;
+			worklist.addAll(current.predecessors);
+		}
+		return true;
+	}
+
+	private static boolean clobbers(Statement statement) {
+		return statement.containsCall() || statement.getType() == Statement.Type.HStoreStmt;
+	}
+}
@@ -0,0 +1,438 @@
+package optimization;
+
+import dataflow.BasicBlock;
+import dataflow.ControlFlowGraph;
+import dataflow.Procedure;
+import dataflow.Statement;
+import syntaxtree.*;
+import visitor.DepthFirstVisitor;
+
+import java.util.*;
+
+/**
+ * Shared vtables:
+ *
+ * a vtable is a constant size HALLOCATE whose words are all stored with procedure labels right
+ * after the allocation, its pointer being otherwise only read or stored at offset 0 of objects.
+ * Vtables are never written once built, and neither is word 0 of an object, so an allocation
+ * reuses a vtable of the same contents when one is provably at hand:
+ *
+ * - a site dominated by a site of the same contents copies its pointer,
+ * - a site of a method whose receiver's vtable has the same contents loads it from the receiver.
+ *
+ * The receiver of a method is known when its label is only held by vtables of a single contents,
+ * every indirect call is a dispatch (HLOAD v r 0, HLOAD f v k, CALL f (r ...)) and every direct
+ * call passes the receiver of a known method of the same contents. Uses are followed per SSA
+ * definition, procedures that can not be put in SSA form keep their allocations and make the
+ * labels and calls they hold unknown. No argument is added, so a shared vtable costs one load.
+ */
+public final class VtableSharing extends Pass {
+
+	@Override
+	public boolean run(ControlFlowGraph cfg) throws Exception {
+		Procedure main = null;
+		Map<Procedure, Definitions> definitions = new LinkedHashMap<Procedure, Definitions>();
+		Map<Procedure, List<Site>> sites = new HashMap<Procedure, List<Site>>();
+		Map<String, String> contents = new HashMap<String, String>();		/* label to the vtable holding it */
+		Set<String> unknown = new HashSet<String>();			/* labels whose receiver is not known */
+		Map<String, Set<Procedure>> callers = new HashMap<String, Set<Procedure>>();	/* passing their receiver */
+		boolean dispatch = true;
+
+		for(Procedure procedure : cfg.getProcedures()) {
+			if(main == null)
+				main = procedure;
+			Definitions d = Definitions.of(procedure);
+			definitions.put(procedure, d);
+			sites.put(procedure, d != null ? findSites(procedure, d) : new ArrayList<Site>());
+
+			Set<Node> stores = new HashSet<Node>();
+			for(Site site : sites.get(procedure)) {
+				stores.addAll(site.stores);
+				for(String label : site.words.values()) {
+					if(contents.containsKey(label) && !contents.get(label).equals(site.toString()))
+						unknown.add(label);
+					contents.put(label, site.toString());
+				}
+			}
+
+			/* a label held by anything but a vtable word may reach any receiver */
+			LabelCollector collector = new LabelCollector();
+			Map<String, Integer> moves = new HashMap<String, Integer>();
+			for(BasicBlock block : procedure.getBlocks())
+				for(Statement statement : block.statements) {
+					accept(statement.getNode(), collector);
+					Node exp = Statements.getExp(statement.getNode());
+					if(d == null || !(exp instanceof SimpleExp) || !(((SimpleExp) exp).f0.choice instanceof Label))
+						continue;
+					String label = ((Label) ((SimpleExp) exp).f0.choice).f0.tokenImage;
+					String name = d.getName(Statements.getDef(statement.getNode()));
+					if(!d.isStoredBy(name, stores))
+						unknown.add(label);
+					count(moves, label);
+				}
+			for(Map.Entry<String, Integer> entry : collector.labels.entrySet())
+				if(!entry.getValue().equals(moves.get(entry.getKey())))
+					unknown.add(entry.getKey());
+
+			for(BasicBlock block : procedure.getBlocks())
+				for(int i = 0; i < block.statements.size(); ++i)
+					if(Statements.getExp(block.statements.get(i).getNode()) instanceof Call) {
+						Call call = (Call) Statements.getExp(block.statements.get(i).getNode());
+						if(!(call.f1.f0.choice instanceof Label))
+							dispatch = dispatch && (d != null ? d.isDispatch(call) : isDispatch(block, i));
+					}
+			for(Call call : getCalls(procedure)) {
+				if(!(call.f1.f0.choice instanceof Label))
+					continue;
+				String label = ((Label) call.f1.f0.choice).f0.tokenImage;
+				if(procedure == main || d == null || !call.f3.present() || d.writes("TEMP 0") > 0
+						|| !d.getOrigin((Temp) call.f3.elementAt(0)).equals("TEMP 0"))
+					unknown.add(label);
+				else {
+					if(!callers.containsKey(label))
+						callers.put(label, new HashSet<Procedure>());
+					callers.get(label).add(procedure);
+				}
+			}
+		}
+
+		/* methods whose receiver's vtable is known, until every direct caller is one of them */
+		Set<Procedure> known = new HashSet<Procedure>();
+		for(Procedure procedure : cfg.getProcedures())
+			if(dispatch && procedure != main && definitions.get(procedure) != null && procedure.getArguments() > 0
+					&& definitions.get(procedure).writes("TEMP 0") == 0 && contents.containsKey(procedure.getName())
+					&& !unknown.contains(procedure.getName()))
+				known.add(procedure);
+		for(boolean changed = true; changed; ) {
+			changed = false;
+			for(Procedure procedure : new ArrayList<Procedure>(known)) {
+				if(!callers.containsKey(procedure.getName()))
+					continue;
+				for(Procedure caller : callers.get(procedure.getName()))
+					if(!known.contains(caller) || !contents.get(caller.getName()).equals(contents.get(procedure.getName()))) {
+						changed = known.remove(procedure);
+						break;
+					}
+			}
+		}
+
+		boolean modified = false;
+		for(Procedure procedure : cfg.getProcedures()) {
+			Definitions d = definitions.get(procedure);
+			Set<Node> stores = new HashSet<Node>();
+			List<Site> visited = new ArrayList<Site>();
+			for(Site site : sites.get(procedure)) {
+				Site shared = null;
+				for(Site other : visited)
+					if(other.toString().equals(site.toString()) && d.writes(Statements.name(other.pointer)) == 1
+							&& d.dominates(other, site)) {
+						shared = other;
+						break;
+					}
+				if(known.contains(procedure) && site.toString().equals(contents.get(procedure.getName()))) {
+					IntegerLiteral offset = new IntegerLiteral(new NodeToken("0"));
+					site.stmt.f0.choice = new HLoadStmt(site.pointer, Statements.temp(0), offset);
+					stores.addAll(site.stores);
+				} else if(shared != null) {
+					Exp exp = new Exp(new NodeChoice(new SimpleExp(new NodeChoice(Statements.temp(Statements.name(shared.pointer))))));
+					site.stmt.f0.choice = new MoveStmt(site.pointer, exp);
+					stores.addAll(site.stores);
+				}
+				visited.add(site);
+			}
+			if(!stores.isEmpty())
+				modified = Statements.remove(procedure.getBody(), stores) || modified;
+		}
+		return modified;
+	}
+
+	/**
+	 * @return the vtable allocations of a procedure
+	 */
+	private static List<Site> findSites(Procedure procedure, Definitions d) throws Exception {
+		List<Site> sites = new ArrayList<Site>();
+		for(BasicBlock block : procedure.getBlocks()) {
+			Map<String, String> labels = new HashMap<String, String>();		/* temps holding a label */
+			for(int i = 0; i < block.statements.size(); ++i) {
+				Statement statement = block.statements.get(i);
+				Site site = findSite(block, i, labels);
+				if(site != null && d.isVtable(site))
+					sites.add(site);
+				for(String def : statement.def)
+					labels.remove(def);
+				Node exp = Statements.getExp(statement.getNode());
+				if(exp instanceof SimpleExp && ((SimpleExp) exp).f0.choice instanceof Label)
+					labels.put(Statements.name(Statements.getDef(statement.getNode())),
+							((Label) ((SimpleExp) exp).f0.choice).f0.tokenImage);
+			}
+		}
+		return sites;
+	}
+
+	/**
+	 * @return the vtable allocated by the i-th statement of a block, null if it is not one
+	 */
+	private static Site findSite(BasicBlock block, int i, Map<String, String> labels) throws Exception {
+		Node node = block.statements.get(i).getNode();
+		Node exp = Statements.getExp(node);
+		if(!(exp instanceof HAllocate) || !(((HAllocate) exp).f1.f0.choice instanceof IntegerLiteral))
+			return null;
+		int size = Integer.parseInt(((IntegerLiteral) ((HAllocate) exp).f1.f0.choice).f0.tokenImage);
+		if(size <= 0 || size % 4 != 0)
+			return null;
+		Site site = new Site((Stmt) node, Statements.getDef(node), size, block, i);
+		String pointer = Statements.name(site.pointer);
+
+		labels = new HashMap<String, String>(labels);
+		for(int j = i + 1; j < block.statements.size() && site.words.size() < size / 4; ++j) {
+			Statement statement = block.statements.get(j);
+			Node current = statement.getNode();
+			if(current instanceof Stmt && ((Stmt) current).f0.choice instanceof HStoreStmt
+					&& Statements.name(((HStoreStmt) ((Stmt) current).f0.choice).f1).equals(pointer)) {
+				HStoreStmt store = (HStoreStmt) ((Stmt) current).f0.choice;
+				int offset = Integer.parseInt(store.f2.f0.tokenImage);
+				String label = labels.get(Statements.name(store.f3));
+				if(label == null || offset % 4 != 0 || offset >= size || site.words.containsKey(offset))
+					return null;
+				site.words.put(offset, label);
+				site.stores.add(current);
+				continue;
+			}
+			for(Temp use : Statements.getUses(current))
+				if(Statements.name(use).equals(pointer))
+					return null;
+			if(statement.def.contains(pointer))
+				return null;
+			for(String def : statement.def)
+				labels.remove(def);
+			Node value = Statements.getExp(current);
+			if(value instanceof SimpleExp && ((SimpleExp) value).f0.choice instanceof Label)
+				labels.put(Statements.name(Statements.getDef(current)), ((Label) ((SimpleExp) value).f0.choice).f0.tokenImage);
+		}
+		return site.words.size() == size / 4 ? site : null;
+	}
+
+	/**
+	 * @return true if the indirect call of the i-th statement of a block is a dispatch, its operands
+	 * being defined earlier in the block
+	 */
+	private static boolean isDispatch(BasicBlock block, int i) {
+		Call call = (Call) Statements.getExp(block.statements.get(i).getNode());
+		if(!(call.f1.f0.choice instanceof Temp) || !call.f3.present())
+			return false;
+		String method = Statements.name((Temp) call.f1.f0.choice), receiver = Statements.name((Temp) call.f3.elementAt(0));
+		String vtable = null;
+		for(int j = i - 1; j >= 0; --j) {
+			Statement statement = block.statements.get(j);
+			Node choice = statement.getNode() instanceof Stmt ? ((Stmt) statement.getNode()).f0.choice : null;
+			if(statement.def.contains(receiver))
+				return false;
+			if(vtable == null && statement.def.contains(method)) {
+				if(!(choice instanceof HLoadStmt))
+					return false;
+				vtable = Statements.name(((HLoadStmt) choice).f2);
+			} else if(vtable != null && statement.def.contains(vtable))
+				return choice instanceof HLoadStmt && ((HLoadStmt) choice).f3.f0.tokenImage.equals("0")
+						&& Statements.name(((HLoadStmt) choice).f2).equals(receiver);
+		}
+		return false;
+	}
+
+	private static List<Call> getCalls(Procedure procedure) {
+		List<Call> calls = new ArrayList<Call>();
+		for(BasicBlock block : procedure.getBlocks())
+			for(Statement statement : block.statements)
+				if(Statements.getExp(statement.getNode()) instanceof Call)
+					calls.add((Call) Statements.getExp(statement.getNode()));
+		return calls;
+	}
+
+	private static void accept(Node node, LabelCollector collector) throws Exception {
+		if(node instanceof StmtExp)
+			((StmtExp) node).f3.accept(collector);
+		else
+			node.accept(collector);
+	}
+
+	private static <K> void count(Map<K, Integer> map, K key) {
+		map.put(key, map.containsKey(key) ? map.get(key) + 1 : 1);
+	}
+
+	/**
+	 * definitions and uses of a procedure in SSA form, the tree itself is left as it is
+	 */
+	private static final class Definitions {
+		private StaticSingleAssignment ssa;
+		private Map<String, Node> defs = new HashMap<String, Node>();			/* SSA name to its statement */
+		private Map<String, List<Temp>> uses = new HashMap<String, List<Temp>>();
+		private Map<Temp, Node> statements = new HashMap<Temp, Node>();		/* use occurrence to its statement */
+		private Set<String> merged = new HashSet<String>();					/* phi operands */
+		private Map<String, Integer> writes = new HashMap<String, Integer>();	/* temp to its definitions */
+		private Map<BasicBlock, Integer> order = new HashMap<BasicBlock, Integer>();
+
+		/**
+		 * @return null if the procedure can not be put in SSA form
+		 */
+		private static Definitions of(Procedure procedure) throws Exception {
+			Definitions d = new Definitions();
+			d.ssa = new StaticSingleAssignment(procedure);
+			if(!d.ssa.construct())
+				return null;
+			for(BasicBlock block : procedure.getBlocks())
+				for(Statement statement : block.statements) {
+					Temp def = Statements.getDef(statement.getNode());
+					if(def != null)
+						count(d.writes, Statements.name(def));
+				}
+			for(BasicBlock block : d.ssa.getDominatorTree().getReversePostorder()) {
+				d.order.put(block, d.order.size());
+				for(StaticSingleAssignment.Phi phi : d.ssa.getPhis(block))
+					d.merged.addAll(phi.getOperands().values());
+				for(Statement statement : block.statements) {
+					Temp def = Statements.getDef(statement.getNode());
+					if(def != null)
+						d.defs.put(d.getName(def), statement.getNode());
+					for(Temp use : Statements.getUses(statement.getNode())) {
+						if(!d.uses.containsKey(d.getName(use)))
+							d.uses.put(d.getName(use), new ArrayList<Temp>());
+						d.uses.get(d.getName(use)).add(use);
+						d.statements.put(use, statement.getNode());
+					}
+				}
+			}
+			return d;
+		}
+
+		private String getName(Temp temp) {
+			return ssa.getName(temp);
+		}
+
+		private int writes(String temp) {
+			return writes.containsKey(temp) ? writes.get(temp) : 0;
+		}
+
+		private List<Temp> getUses(String name) {
+			return uses.containsKey(name) ? uses.get(name) : Collections.<Temp>emptyList();
+		}
+
+		private Node getChoice(Node node) {
+			return node instanceof Stmt ? ((Stmt) node).f0.choice : null;
+		}
+
+		/**
+		 * @return the SSA name a temp occurrence was copied from, following MOVE copies
+		 */
+		private String getOrigin(Temp temp) {
+			String name = getName(temp);
+			for(Temp source; defs.containsKey(name) && (source = Statements.getCopySource(defs.get(name))) != null; )
+				name = getName(source);
+			return name;
+		}
+
+		/**
+		 * @return true if the definition of a site's pointer is only filled by its stores, read from
+		 * or stored at offset 0
+		 */
+		private boolean isVtable(Site site) {
+			String name = getName(site.pointer);
+			if(merged.contains(name))
+				return false;
+			for(Temp use : getUses(name)) {
+				Node choice = getChoice(statements.get(use));
+				boolean allowed = choice instanceof HLoadStmt && ((HLoadStmt) choice).f2 == use;
+				if(choice instanceof HStoreStmt) {
+					HStoreStmt store = (HStoreStmt) choice;
+					allowed = store.f1 == use ? site.stores.contains(statements.get(use)) :
+							store.f2.f0.tokenImage.equals("0") && store.f3 == use;
+				}
+				if(!allowed)
+					return false;
+			}
+			return true;
+		}
+
+		/**
+		 * @return true if a label definition is only stored by some of the given statements
+		 */
+		private boolean isStoredBy(String name, Set<Node> stores) {
+			if(merged.contains(name))
+				return false;
+			for(Temp use : getUses(name))
+				if(!stores.contains(statements.get(use)) || ((HStoreStmt) getChoice(statements.get(use))).f3 != use)
+					return false;
+			return true;
+		}
+
+		/**
+		 * @return true if an indirect call is HLOAD v r 0, HLOAD f v k, CALL f (r ...)
+		 */
+		private boolean isDispatch(Call call) {
+			if(!(call.f1.f0.choice instanceof Temp) || !call.f3.present())
+				return false;
+			Node method = getChoice(defs.get(getName((Temp) call.f1.f0.choice)));
+			if(!(method instanceof HLoadStmt))
+				return false;
+			Node vtable = getChoice(defs.get(getName(((HLoadStmt) method).f2)));
+			if(!(vtable instanceof HLoadStmt) || !((HLoadStmt) vtable).f3.f0.tokenImage.equals("0"))
+				return false;
+			return getName(((HLoadStmt) vtable).f2).equals(getName((Temp) call.f3.elementAt(0)));
+		}
+
+		/**
+		 * @return true if a site is executed before another one whenever the latter is
+		 */
+		private boolean dominates(Site a, Site b) {
+			if(!order.containsKey(a.block) || !order.containsKey(b.block))
+				return false;
+			if(a.block == b.block)
+				return a.index < b.index;
+			return ssa.getDominatorTree().dominates(a.block, b.block);
+		}
+	}
+
+	/**
+	 * a vtable allocation and the stores filling it
+	 */
+	private static final class Site {
+		private Stmt stmt;
+		private Temp pointer;
+		private int size;
+		private SortedMap<Integer, String> words;		/* offset to label */
+		private List<Node> stores;
+		private BasicBlock block;
+		private int index;
+
+		private Site(Stmt stmt, Temp pointer, int size, BasicBlock block, int index) {
+			this.stmt = stmt;
+			this.pointer = pointer;
+			this.size = size;
+			this.words = new TreeMap<Integer, String>();
+			this.stores = new ArrayList<Node>();
+			this.block = block;
+			this.index = index;
+		}
+
+		@Override
+		public String toString() {
+			return size + " " + words;
+		}
+	}
+
+	/**
+	 * occurrences of procedure labels used as values, CALL targets excluded
+	 */
+	private static final class LabelCollector extends DepthFirstVisitor {
+		private Map<String, Integer> labels = new HashMap<String, Integer>();
+
+		@Override
+		public void visit(Call n) throws Exception {
+			n.f3.accept(this);
+		}
+
+		@Override
+		public void visit(SimpleExp n) throws Exception {
+			if(n.f0.choice instanceof Label)
+				count(labels, ((Label) n.f0.choice).f0.tokenImage);
+		}
+	}
+}
@@ -19,6 +19,13 @@ public final class Sets {
 		return difference;
 	}
 
+	public static <T> Set<T> intersection(Set<T> a, Set<T> b){
+		Set<T> intersection = new HashSet<T>();
+		intersection.addAll(a);
+		intersection.retainAll(b);
+		return intersection;
+	}
+
 	public static <T> boolean differ(Set<T> a,Set<T> b){
 		return a.size() != b.size() || !a.containsAll(b) || !b.containsAll(a);
 	}
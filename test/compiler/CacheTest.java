@@ -0,0 +1,104 @@
+package compiler;
+
+import dataflow.ControlFlowGraph.Allocator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+
+/**
+ * Cache keys, misses, hits and least recently used eviction, in a temporary directory.
+ *
+ * From the repository root:
+ *   javac -d out $(find . -name '*.java') && java -cp out compiler.CacheTest
+ */
+public final class CacheTest {
+	private static final Charset charset = Charset.forName("UTF-8");
+
+	public static void main(String[] args) throws Exception {
+		File directory = Files.createTempDirectory("cache").toFile();
+		try {
+			keys(new Cache(directory, 1 << 20));
+			hits(new Cache(directory, 1 << 20));
+			eviction(directory);
+		} finally {
+			for(File file : directory.listFiles())
+				file.delete();
+			directory.delete();
+		}
+		System.out.println("ok");
+	}
+
+	private static void keys(Cache cache) {
+		byte[] source = "MAIN PRINT 1 END".getBytes(charset);
+		String key = cache.getKey(source, new Compiler(1, Allocator.Chaitin));
+		check(key.matches("[0-9a-f]{64}"), "key " + key);
+		check(key.equals(cache.getKey(source.clone(), new Compiler(1, Allocator.Chaitin))), "same source and options");
+		check(!key.equals(cache.getKey("MAIN PRINT 2 END".getBytes(charset), new Compiler(1, Allocator.Chaitin))), "other source");
+		check(!key.equals(cache.getKey(source, new Compiler(2, Allocator.Chaitin))), "other level");
+		check(!key.equals(cache.getKey(source, new Compiler(1, Allocator.Chordal))), "other allocator");
+		check(!key.equals(cache.getKey(source, new Compiler(1, Allocator.Chaitin, null, true))), "streaming");
+	}
+
+	private static void hits(Cache cache) throws Exception {
+		String source = "MAIN PRINT 1 END";
+		Compiler compiler = new Compiler(1, Allocator.Chaitin);
+		String key = cache.getKey(source.getBytes(charset), compiler);
+		check(cache.get(key) == null, "miss before the program is put");
+
+		File kanga = File.createTempFile("program", ".kg");
+		try {
+			write(kanga, compiler.compile(source));
+			cache.put(key, kanga);
+			File entry = cache.get(key);
+			check(entry != null && read(entry).equals(compiler.compile(source)), "hit after the program is put");
+			write(kanga, "changed");
+			check(read(cache.get(key)).equals(compiler.compile(source)), "entries are copies");
+		} finally {
+			kanga.delete();
+		}
+		check(new Cache(cache.get(key).getParentFile(), 1 << 20).get(key) != null, "hit from another cache on the directory");
+	}
+
+	/**
+	 * three entries of 100 bytes under a limit of 250: the least recently used one goes
+	 */
+	private static void eviction(File directory) throws IOException {
+		for(File file : directory.listFiles())
+			file.delete();
+		Cache cache = new Cache(directory, 250);
+		String[] keys = new String[3];
+		for(int i = 0; i < keys.length; ++i)
+			keys[i] = cache.getKey(("MAIN PRINT " + i + " END").getBytes(charset), new Compiler());
+		File kanga = File.createTempFile("program", ".kg");
+		try {
+			write(kanga, String.format("%100s", ""));
+			cache.put(keys[0], kanga);
+			cache.put(keys[1], kanga);
+			long now = System.currentTimeMillis();
+			new File(directory, keys[0] + ".kg").setLastModified(now - 20000);
+			new File(directory, keys[1] + ".kg").setLastModified(now - 10000);
+			check(cache.get(keys[0]) != null, "first entry before eviction");		/* now the most recently used */
+			cache.put(keys[2], kanga);
+		} finally {
+			kanga.delete();
+		}
+		check(cache.get(keys[0]) != null, "entry used last kept");
+		check(cache.get(keys[1]) == null, "entry used least recently evicted");
+		check(cache.get(keys[2]) != null, "entry just put kept");
+	}
+
+	private static void write(File file, String text) throws IOException {
+		Files.write(file.toPath(), text.getBytes(charset));
+	}
+
+	private static String read(File file) throws IOException {
+		return new String(Files.readAllBytes(file.toPath()), charset);
+	}
+
+	private static void check(boolean condition, String message) {
+		if(!condition)
+			throw new AssertionError(message);
+	}
+}
@@ -0,0 +1,391 @@
+package compiler;
+
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Spiglet and Kanga interpreter for the tests: runs a program and returns what it printed, a line
+ * per PRINT, followed by ERROR if it stopped at one. Anything else going wrong, a bad address,
+ * arithmetic on a label, an undefined temp, throws an IllegalStateException.
+ *
+ * Kanga runs strictly: the caller saved registers hold no value after a CALL, and a procedure
+ * returning with a callee saved register changed fails, so that an allocation bug shows as a
+ * failure rather than as a lucky output.
+ */
+final class Interpreter {
+	private static final Pattern token = Pattern.compile("\\[|\\]|\\(|\\)|[A-Za-z_][A-Za-z0-9_]*|-?\\d+");
+	private static final Set<String> statements = new HashSet<String>(Arrays.asList("NOOP", "ERROR", "CJUMP", "JUMP",
+			"HSTORE", "HLOAD", "MOVE", "PRINT", "ALOAD", "ASTORE", "PASSARG", "CALL"));
+	private static final Set<String> operators = new HashSet<String>(Arrays.asList("LT", "PLUS", "MINUS", "TIMES"));
+	private static final Set<String> registers = new HashSet<String>();
+	private static final Object poison = new Object();		/* a register the program may not read */
+	private static final long maxSteps = 100000000;
+
+	static {
+		for(int i = 0; i < 4; ++i)
+			registers.add("a" + i);
+		for(int i = 0; i < 10; ++i)
+			registers.add("t" + i);
+		for(int i = 0; i < 8; ++i)
+			registers.add("s" + i);
+		registers.add("v0");
+		registers.add("v1");
+	}
+
+	private final boolean kanga;
+	private final List<String> tokens = new ArrayList<String>();
+	private int position = 0;
+	private final Map<String, Procedure> procedures = new HashMap<String, Procedure>();
+	private final Map<Integer, Object> memory = new HashMap<Integer, Object>();
+	private int heap = 1000;
+	private final Map<String, Object> state = new HashMap<String, Object>();	/* Kanga registers */
+	private final StringBuilder out = new StringBuilder();
+	private long steps = 0;
+
+	private Interpreter(String program, boolean kanga) {
+		this.kanga = kanga;
+		Matcher matcher = token.matcher(program.replaceAll("//[^\n]*", " ").replaceAll("(?s)/\\*.*?\\*/", " "));
+		while(matcher.find())
+			tokens.add(matcher.group());
+		parse();
+	}
+
+	static String runSpiglet(String program) {
+		return new Interpreter(program, false).run();
+	}
+
+	static String runKanga(String program) {
+		return new Interpreter(program, true).run();
+	}
+
+	private String run() {
+		for(String register : registers)
+			state.put(register, 0);
+		try {
+			if(kanga)
+				call(procedures.get("MAIN"), new HashMap<Integer, Object>());
+			else
+				call(procedures.get("MAIN"), new ArrayList<Object>());
+		} catch (Stop e) {
+			out.append("ERROR\n");
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Spiglet procedure, temps are local to its frame
+	 */
+	private Object call(Procedure procedure, List<Object> arguments) {
+		if(arguments.size() != procedure.arguments)
+			throw new IllegalStateException(procedure.name + " called with " + arguments.size() + " arguments");
+		Map<String, Object> temps = new HashMap<String, Object>();
+		for(int i = 0; i < arguments.size(); ++i)
+			temps.put("TEMP " + i, arguments.get(i));
+		for(int pc = 0; pc < procedure.statements.size(); ) {
+			String[] stmt = procedure.statements.get(pc++);
+			count();
+			if(stmt[0].equals("MOVE") && stmt[2].equals("CALL")) {
+				List<Object> values = new ArrayList<Object>();
+				for(int i = 4; i < stmt.length; ++i)
+					values.add(value(stmt[i], temps));
+				temps.put(stmt[1], call(getProcedure(value(stmt[3], temps)), values));
+			}
+			else
+				pc = execute(procedure, stmt, pc, temps);
+		}
+		return procedure.result != null ? value(procedure.result, temps) : null;
+	}
+
+	/**
+	 * Kanga procedure, passed arguments fill the first stack slots
+	 */
+	private void call(Procedure procedure, Map<Integer, Object> passed) {
+		Object[] stack = new Object[procedure.stack];
+		Arrays.fill(stack, poison);
+		for(Map.Entry<Integer, Object> argument : passed.entrySet()) {
+			if(argument.getKey() > procedure.stack)
+				throw new IllegalStateException(procedure.name + ": PASSARG " + argument.getKey() + " beyond its stack");
+			stack[argument.getKey() - 1] = argument.getValue();
+		}
+		Map<String, Object> saved = new HashMap<String, Object>();
+		for(String register : registers)
+			if(register.startsWith("s"))
+				saved.put(register, state.get(register));
+		Map<Integer, Object> passing = new HashMap<Integer, Object>();
+		for(int pc = 0; pc < procedure.statements.size(); ) {
+			String[] stmt = procedure.statements.get(pc++);
+			count();
+			if(stmt[0].equals("ALOAD"))
+				state.put(stmt[1], stack[slot(procedure, stmt[2])]);
+			else if(stmt[0].equals("ASTORE"))
+				stack[slot(procedure, stmt[1])] = state.get(stmt[2]);
+			else if(stmt[0].equals("PASSARG"))
+				passing.put(Integer.parseInt(stmt[1]), state.get(stmt[2]));
+			else if(stmt[0].equals("CALL")) {
+				Procedure callee = getProcedure(value(stmt[1], state));
+				clobber("t", "v");
+				call(callee, passing);
+				passing = new HashMap<Integer, Object>();
+				clobber("t", "a", "v1");
+			}
+			else
+				pc = execute(procedure, stmt, pc, state);
+		}
+		if(!procedure.name.equals("MAIN"))
+			for(Map.Entry<String, Object> register : saved.entrySet())
+				if(state.get(register.getKey()) != register.getValue() && !register.getValue().equals(state.get(register.getKey())))
+					throw new IllegalStateException(procedure.name + " changed callee saved " + register.getKey());
+	}
+
+	/**
+	 * runs a statement both languages share, temps being Spiglet temps or Kanga registers
+	 * @return the statement to run next
+	 */
+	private int execute(Procedure procedure, String[] stmt, int pc, Map<String, Object> temps) {
+		String kind = stmt[0];
+		if(kind.equals("ERROR"))
+			throw new Stop();
+		if(kind.equals("CJUMP")) {
+			if(!Integer.valueOf(1).equals(value(stmt[1], temps)))
+				return getLabel(procedure, stmt[2]);
+		}
+		else if(kind.equals("JUMP"))
+			return getLabel(procedure, stmt[1]);
+		else if(kind.equals("HSTORE"))
+			store(address(value(stmt[1], temps), stmt[2]), value(stmt[3], temps));
+		else if(kind.equals("HLOAD"))
+			temps.put(stmt[1], load(address(value(stmt[2], temps), stmt[3])));
+		else if(kind.equals("MOVE")) {
+			Object result;
+			if(stmt[2].equals("HALLOCATE"))
+				result = allocate(value(stmt[3], temps));
+			else if(operators.contains(stmt[2]))
+				result = apply(stmt[2], value(stmt[3], temps), value(stmt[4], temps));
+			else if(registers.contains(stmt[3]))
+				result = temps.get(stmt[3]);			/* copies need no value, spill code moves anything */
+			else
+				result = value(stmt[3], temps);
+			temps.put(stmt[1], result);
+		}
+		else if(kind.equals("PRINT"))
+			out.append(value(stmt[1], temps)).append('\n');
+		return pc;
+	}
+
+	private Object value(String operand, Map<String, Object> temps) {
+		if(operand.startsWith("TEMP ") || registers.contains(operand)) {
+			Object value = temps.get(operand);
+			if(value == null || value == poison)
+				throw new IllegalStateException("read of " + operand + " without a value");
+			return value;
+		}
+		if(operand.matches("-?\\d+"))
+			return Integer.valueOf(operand);
+		return operand;
+	}
+
+	private static Object apply(String operator, Object left, Object right) {
+		if(!(left instanceof Integer) || !(right instanceof Integer))
+			throw new IllegalStateException(operator + " of " + left + " and " + right);
+		int a = (Integer) left, b = (Integer) right;
+		if(operator.equals("LT"))
+			return a < b ? 1 : 0;
+		if(operator.equals("PLUS"))
+			return a + b;
+		if(operator.equals("MINUS"))
+			return a - b;
+		return a * b;
+	}
+
+	private int allocate(Object size) {
+		if(!(size instanceof Integer) || (Integer) size < 0)
+			throw new IllegalStateException("HALLOCATE " + size);
+		int base = heap;
+		heap += Math.max((Integer) size, 4) + 64;
+		for(int i = 0; i < (Integer) size; i += 4)
+			memory.put(base + i, 0);
+		return base;
+	}
+
+	private static int address(Object base, String offset) {
+		if(!(base instanceof Integer))
+			throw new IllegalStateException("address " + base);
+		return (Integer) base + Integer.parseInt(offset);
+	}
+
+	private Object load(int address) {
+		if(!memory.containsKey(address))
+			throw new IllegalStateException("load of " + address);
+		return memory.get(address);
+	}
+
+	private void store(int address, Object value) {
+		if(!memory.containsKey(address))
+			throw new IllegalStateException("store to " + address);
+		memory.put(address, value);
+	}
+
+	private void clobber(String... prefixes) {
+		for(String register : registers)
+			for(String prefix : prefixes)
+				if(register.startsWith(prefix))
+					state.put(register, poison);
+	}
+
+	private static int slot(Procedure procedure, String slot) {
+		int index = Integer.parseInt(slot);
+		if(index >= procedure.stack)
+			throw new IllegalStateException(procedure.name + ": SPILLEDARG " + index + " beyond its stack");
+		return index;
+	}
+
+	private Procedure getProcedure(Object name) {
+		if(!procedures.containsKey(name))
+			throw new IllegalStateException("CALL of " + name);
+		return procedures.get(name);
+	}
+
+	private static int getLabel(Procedure procedure, String label) {
+		if(!procedure.labels.containsKey(label))
+			throw new IllegalStateException(procedure.name + ": no label " + label);
+		return procedure.labels.get(label);
+	}
+
+	private void count() {
+		if(++steps > maxSteps)
+			throw new IllegalStateException("more than " + maxSteps + " steps");
+	}
+
+	/**
+	 * Spiglet: MAIN StmtList END ( Label [ n ] BEGIN StmtList RETURN SimpleExp END )*
+	 * Kanga:   MAIN [ n ] [ n ] [ n ] StmtList END ( Label [ n ] [ n ] [ n ] StmtList END )*
+	 */
+	private void parse() {
+		while(position < tokens.size()) {
+			Procedure procedure = new Procedure(next());
+			if(kanga) {
+				procedure.arguments = bracketed();
+				procedure.stack = bracketed();
+				bracketed();
+			}
+			else if(!procedure.name.equals("MAIN")) {
+				procedure.arguments = bracketed();
+				expect("BEGIN");
+			}
+			while(!peek().equals("END") && !peek().equals("RETURN")) {
+				if(!statements.contains(peek()))
+					procedure.labels.put(next(), procedure.statements.size());
+				procedure.statements.add(statement());
+			}
+			if(peek().equals("RETURN")) {
+				next();
+				procedure.result = simple();
+			}
+			expect("END");
+			procedures.put(procedure.name, procedure);
+		}
+	}
+
+	private String[] statement() {
+		String kind = next();
+		if(kind.equals("NOOP") || kind.equals("ERROR"))
+			return new String[] {kind};
+		if(kind.equals("CJUMP"))
+			return new String[] {kind, temp(), next()};
+		if(kind.equals("JUMP"))
+			return new String[] {kind, next()};
+		if(kind.equals("HSTORE"))
+			return new String[] {kind, temp(), next(), temp()};
+		if(kind.equals("HLOAD"))
+			return new String[] {kind, temp(), temp(), next()};
+		if(kind.equals("PRINT"))
+			return new String[] {kind, simple()};
+		if(kind.equals("ALOAD")) {
+			String register = temp();
+			expect("SPILLEDARG");
+			return new String[] {kind, register, next()};
+		}
+		if(kind.equals("ASTORE")) {
+			expect("SPILLEDARG");
+			String slot = next();
+			return new String[] {kind, slot, temp()};
+		}
+		if(kind.equals("PASSARG")) {
+			String slot = next();
+			return new String[] {kind, slot, temp()};
+		}
+		if(kind.equals("CALL"))
+			return new String[] {kind, simple()};
+		if(!kind.equals("MOVE"))
+			throw new IllegalStateException("unexpected " + kind);
+		String target = temp();
+		if(peek().equals("CALL")) {
+			List<String> call = new ArrayList<String>(Arrays.asList(kind, target, next(), simple()));
+			expect("(");
+			while(!peek().equals(")"))
+				call.add(temp());
+			next();
+			return call.toArray(new String[call.size()]);
+		}
+		if(peek().equals("HALLOCATE"))
+			return new String[] {kind, target, next(), simple()};
+		if(operators.contains(peek()))
+			return new String[] {kind, target, next(), temp(), simple()};
+		return new String[] {kind, target, "", simple()};
+	}
+
+	private String temp() {
+		if(kanga)
+			return next();
+		expect("TEMP");
+		return "TEMP " + next();
+	}
+
+	private String simple() {
+		return peek().equals("TEMP") ? temp() : next();
+	}
+
+	private int bracketed() {
+		expect("[");
+		int value = Integer.parseInt(next());
+		expect("]");
+		return value;
+	}
+
+	private String peek() {
+		if(position == tokens.size())
+			throw new IllegalStateException("unexpected end of program");
+		return tokens.get(position);
+	}
+
+	private String next() {
+		String token = peek();
+		++position;
+		return token;
+	}
+
+	private void expect(String expected) {
+		String token = next();
+		if(!token.equals(expected))
+			throw new IllegalStateException(expected + " expected, " + token + " found");
+	}
+
+	private static final class Procedure {
+		private final String name;
+		private int arguments, stack;
+		private final List<String[]> statements = new ArrayList<String[]>();
+		private final Map<String, Integer> labels = new HashMap<String, Integer>();
+		private String result;				/* Spiglet's returned value */
+
+		private Procedure(String name) {
+			this.name = name;
+		}
+	}
+
+	/**
+	 * ERROR, unwinding every frame
+	 */
+	private static final class Stop extends RuntimeException {
+	}
+}
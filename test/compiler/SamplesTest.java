@@ -0,0 +1,49 @@
+package compiler;
+
+import dataflow.ControlFlowGraph.Allocator;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/**
+ * Compiles every program of input/spiglet at -O0, -O1 and -O2, with both allocators, whole and
+ * streamed, runs the Kanga and compares what it prints with what the Spiglet source prints.
+ *
+ * From the repository root:
+ *   javac -d out $(find . -name '*.java') && java -cp out compiler.SamplesTest
+ */
+public final class SamplesTest {
+
+	public static void main(String[] args) throws Exception {
+		File[] files = new File("input/spiglet").listFiles();
+		if(files == null || files.length == 0)
+			throw new AssertionError("no programs in input/spiglet, run from the repository root");
+		Arrays.sort(files);
+		int compiled = 0;
+		for(File file : files) {
+			if(!file.getName().endsWith(".spg"))
+				continue;
+			String source = new String(Files.readAllBytes(file.toPath()), Charset.forName("UTF-8"));
+			String expected = Interpreter.runSpiglet(source);
+			for(int level = 0; level <= 2; ++level)
+				for(Allocator allocator : Allocator.values())
+					for(boolean streaming : new boolean[] {false, true}) {
+						Compiler compiler = new Compiler(level, allocator, null, streaming);
+						String options = "-O" + level + " --allocator=" + Protocol.getName(allocator) + (streaming ? " --stream" : "");
+						String actual;
+						try {
+							actual = Interpreter.runKanga(compiler.compile(source));
+						} catch (IllegalStateException e) {
+							throw new AssertionError(file + " " + options + ": " + e.getMessage());
+						}
+						if(!actual.equals(expected))
+							throw new AssertionError(file + " " + options + ": printed\n" + actual + "instead of\n" + expected);
+						++compiled;
+					}
+			System.out.println(file.getName() + ": ok");
+		}
+		System.out.println(compiled + " compilations ok");
+	}
+}
@@ -0,0 +1,153 @@
+package compiler;
+
+import dataflow.ControlFlowGraph.Allocator;
+
+import java.io.*;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Round trips through the wire format and through a compile server on a free loopback port:
+ * compilations by SOURCE and by PATH, errors that keep the connection, and payload lengths that
+ * end it.
+ *
+ * From the repository root:
+ *   javac -d out $(find . -name '*.java') && java -cp out compiler.ServerTest
+ */
+public final class ServerTest {
+
+	public static void main(String[] args) throws Exception {
+		protocol();
+		server();
+		System.out.println("ok");
+		System.exit(0);			/* the server's pool outlives main */
+	}
+
+	private static void protocol() throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		Protocol.write(buffer, "OK", "MAIN [ 0 ] [ 0 ] [ 0 ]\n// été\nEND\n");
+		Protocol.write(buffer, "ERROR", "");
+		InputStream in = new ByteArrayInputStream(buffer.toByteArray());
+		String[] header = Protocol.readLine(in).split(" ");
+		check(header[0].equals("OK"), "header " + header[0]);
+		check(Protocol.readPayload(in, Protocol.getLength(header[1])).equals("MAIN [ 0 ] [ 0 ] [ 0 ]\n// été\nEND\n"),
+				"payload lengths count bytes, not characters");
+		check(Protocol.readLine(in).equals("ERROR 0"), "empty payload");
+		check(Protocol.readLine(in) == null, "end of stream");
+
+		check(Protocol.getLength(Integer.toString(Protocol.maxPayload)) == Protocol.maxPayload, "largest payload");
+		for(String length : new String[] {Integer.toString(Protocol.maxPayload + 1), "2000000000", "99999999999", "-5", "", "1e3"})
+			try {
+				Protocol.getLength(length);
+				throw new AssertionError("payload length '" + length + "' accepted");
+			} catch (java.net.ProtocolException e) {
+			}
+	}
+
+	private static void server() throws Exception {
+		ServerSocket probe = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		final int port = probe.getLocalPort();
+		probe.close();
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					new Server(port, 2).serve();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		thread.setDaemon(true);
+		thread.start();
+
+		String path = new File("input/spiglet/Factorial.spg").getAbsolutePath();
+		String source = new String(Files.readAllBytes(Paths.get(path)), Protocol.charset);
+		String kanga = new Compiler(1, Allocator.Chaitin).compile(source);
+		Socket socket = connect(port);
+		try {
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			OutputStream out = socket.getOutputStream();
+			check(request(in, out, "COMPILE 1 chaitin SOURCE", source).equals("OK\n" + kanga), "SOURCE compilation");
+			check(request(in, out, "COMPILE 1 chaitin PATH " + path, null).equals("OK\n" + kanga), "PATH compilation");
+			/* errors are answered, the connection goes on */
+			check(request(in, out, "COMPILE 1 chaitin SOURCE", "MAIN PRINT END").startsWith("ERROR\n"), "parse error");
+			check(request(in, out, "COMPILE 1 chaitin PATH " + new File("Driver.java").getAbsolutePath(), null)
+					.startsWith("ERROR\n"), "PATH of a file other than .spg");
+			check(request(in, out, "COMPILE 1 linear SOURCE", source).startsWith("ERROR\n"), "unknown allocator");
+			check(request(in, out, "RUN", null).startsWith("ERROR\n"), "unknown request");
+			check(request(in, out, "COMPILE 2 ssa SOURCE", source).equals("OK\n" + new Compiler(2, Allocator.Chordal).compile(source)),
+					"compilation after errors");
+		} finally {
+			socket.close();
+		}
+
+		/* a length that cannot be read is refused, and the payload behind it ends the connection */
+		for(String length : new String[] {"99999999999", "2000000000", "-5"}) {
+			socket = connect(port);
+			try {
+				InputStream in = new BufferedInputStream(socket.getInputStream());
+				OutputStream out = socket.getOutputStream();
+				out.write(("COMPILE 1 chaitin SOURCE " + length + "\n").getBytes(Protocol.charset));
+				out.write(source.getBytes(Protocol.charset));
+				out.flush();
+				check(Protocol.readLine(in).startsWith("ERROR "), "SOURCE " + length + " answered");
+				check(isClosed(socket, in), "SOURCE " + length + " ends the connection");
+			} finally {
+				socket.close();
+			}
+		}
+	}
+
+	/**
+	 * @return the response header word, a newline and the payload
+	 */
+	private static String request(InputStream in, OutputStream out, String request, String source) throws IOException {
+		if(source != null) {
+			byte[] bytes = source.getBytes(Protocol.charset);
+			out.write((request + " " + bytes.length + "\n").getBytes(Protocol.charset));
+			out.write(bytes);
+		}
+		else
+			out.write((request + "\n").getBytes(Protocol.charset));
+		out.flush();
+		String[] header = Protocol.readLine(in).split(" ");
+		return header[0] + "\n" + Protocol.readPayload(in, Protocol.getLength(header[1]));
+	}
+
+	/**
+	 * a server closing with data left unread may reset the connection instead of ending it
+	 */
+	private static boolean isClosed(Socket socket, InputStream in) throws IOException {
+		socket.setSoTimeout(10000);
+		try {
+			while(in.read() != -1) ;
+			return true;
+		} catch (SocketTimeoutException e) {
+			return false;
+		} catch (IOException e) {
+			return true;
+		}
+	}
+
+	private static Socket connect(int port) throws Exception {
+		for(int attempt = 0; ; ++attempt)
+			try {
+				return new Socket(InetAddress.getLoopbackAddress(), port);
+			} catch (ConnectException e) {
+				if(attempt == 50)
+					throw e;
+				Thread.sleep(100);
+			}
+	}
+
+	private static void check(boolean condition, String message) {
+		if(!condition)
+			throw new AssertionError(message);
+	}
+}
@@ -0,0 +1,113 @@
+package compiler;
+
+import dataflow.ControlFlowGraph.Allocator;
+import dataflow.ProcedureStore;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+
+/**
+ * Watch mode in a temporary directory: the first build, a rebuild after an edit, files and
+ * subdirectories created while watching, and an edit that does not parse, which leaves the
+ * program compiled before in place.
+ *
+ * From the repository root:
+ *   javac -d out $(find . -name '*.java') && java -cp out compiler.WatcherTest
+ */
+public final class WatcherTest {
+	private static final Charset charset = Charset.forName("UTF-8");
+	private static final long timeout = 20000;		/* milliseconds */
+
+	public static void main(String[] args) throws Exception {
+		File directory = Files.createTempDirectory("watch").toFile();
+		try {
+			watch(directory);
+		} finally {
+			delete(directory);
+		}
+		System.out.println("ok");
+		System.exit(0);			/* the watcher outlives main */
+	}
+
+	private static void watch(File directory) throws Exception {
+		final Compiler compiler = new Compiler(1, Allocator.Chaitin, new ProcedureStore(64));
+		File source = new File(directory, "a.spg"), kanga = new File(directory, "a.kg");
+		write(source, program(1));
+		final Watcher watcher = new Watcher(2);
+		watcher.add(directory, compiler);
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					watcher.watch();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		thread.setDaemon(true);
+		thread.start();
+
+		await(kanga, program(1), "first build");
+		write(source, program(2));
+		await(kanga, program(2), "rebuild after an edit");
+
+		File created = new File(directory, "b.spg");
+		write(created, program(3));
+		await(new File(directory, "b.kg"), program(3), "file created while watching");
+
+		File subdirectory = new File(directory, "sub");
+		check(subdirectory.mkdir(), "subdirectory created");
+		File nested = new File(subdirectory, "c.spg");
+		write(nested, program(4));
+		await(new File(subdirectory, "c.kg"), program(4), "file of a subdirectory created while watching");
+
+		/* a failed rebuild keeps the program, a later good edit replaces it */
+		write(source, "MAIN PRINT END");
+		Thread.sleep(1000);
+		check(read(kanga).equals(compiler.compile(program(2))), "program kept after an edit that does not parse");
+		write(source, program(5));
+		await(kanga, program(5), "rebuild after a failed one");
+	}
+
+	private static String program(int value) {
+		return "MAIN\n\tMOVE TEMP 20 " + value + "\n\tMOVE TEMP 21 CALL Twice ( TEMP 20 )\n\tPRINT TEMP 21\nEND\n"
+				+ "Twice [ 1 ]\nBEGIN\n\tMOVE TEMP 1 PLUS TEMP 0 TEMP 0\nRETURN TEMP 1\nEND\n";
+	}
+
+	/**
+	 * waits for a Kanga file to hold the program compiled from a Spiglet one, and to print twice its value
+	 */
+	private static void await(File kanga, String program, String message) throws Exception {
+		String expected = new Compiler(1, Allocator.Chaitin).compile(program);
+		for(long start = System.currentTimeMillis(); System.currentTimeMillis() - start < timeout; Thread.sleep(50))
+			if(kanga.isFile() && read(kanga).equals(expected)) {
+				check(Interpreter.runKanga(read(kanga)).equals(Interpreter.runSpiglet(program)), message + ": output");
+				return;
+			}
+		throw new AssertionError(message + ": " + kanga + " not rebuilt within " + timeout + " ms");
+	}
+
+	private static void write(File file, String text) throws IOException {
+		Files.write(file.toPath(), text.getBytes(charset));
+	}
+
+	private static String read(File file) throws IOException {
+		return new String(Files.readAllBytes(file.toPath()), charset);
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if(files != null)
+			for(File child : files)
+				delete(child);
+		file.delete();
+	}
+
+	private static void check(boolean condition, String message) {
+		if(!condition)
+			throw new AssertionError(message);
+	}
+}
@@ -0,0 +1,127 @@
+package dataflow;
+
+import compiler.Compiler;
+import dataflow.ControlFlowGraph.Allocator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * Incremental compilation through a ProcedureStore: unchanged procedures reuse their allocation,
+ * edited ones are allocated again, and a procedure whose global labels shifted gets its Kanga
+ * emitted again rather than reused. Every incremental result must equal a compilation from
+ * scratch. Reuse is seen through the graph's log.
+ *
+ * From the repository root:
+ *   javac -d out $(find . -name '*.java') && java -cp out dataflow.ProcedureStoreTest
+ */
+public final class ProcedureStoreTest {
+	private static final String main = "MAIN\n"
+			+ "\tMOVE TEMP 20 3\n"
+			+ "\tMOVE TEMP 21 CALL First ( TEMP 20 )\n"
+			+ "\tPRINT TEMP 21\n"
+			+ "\tMOVE TEMP 22 CALL Second ( TEMP 20 )\n"
+			+ "\tPRINT TEMP 22\n"
+			+ "END\n";
+	private static final String first = "First [ 1 ]\n"
+			+ "BEGIN\n"
+			+ "\tMOVE TEMP 1 1\n"
+			+ "\tMOVE TEMP 2 LT TEMP 0 TEMP 1\n"
+			+ "\tCJUMP TEMP 2 L1\n"
+			+ "\tMOVE TEMP 0 0\n"
+			+ "L1\tNOOP\n"
+			+ "RETURN TEMP 0\n"
+			+ "END\n";
+	private static final String second = "Second [ 1 ]\n"
+			+ "BEGIN\n"
+			+ "\tMOVE TEMP 1 0\n"
+			+ "L2\tNOOP\n"
+			+ "\tMOVE TEMP 2 LT TEMP 1 TEMP 0\n"
+			+ "\tCJUMP TEMP 2 L3\n"
+			+ "\tMOVE TEMP 1 PLUS TEMP 1 1\n"
+			+ "\tJUMP L2\n"
+			+ "L3\tNOOP\n"
+			+ "RETURN TEMP 1\n"
+			+ "END\n";
+
+	public static void main(String[] args) throws Exception {
+		final List<String> reused = new ArrayList<String>();
+		Class.forName(ControlFlowGraph.class.getName());		/* its initializer turns the log off */
+		Logger logger = Logger.getLogger(ControlFlowGraph.class.getName());
+		logger.setUseParentHandlers(false);
+		logger.addHandler(new Handler() {
+			@Override
+			public void publish(LogRecord record) {
+				if(record.getMessage().endsWith(": unchanged, allocation reused"))
+					synchronized(reused) {
+						reused.add(record.getMessage().substring(0, record.getMessage().indexOf(':')));
+					}
+			}
+
+			@Override
+			public void flush() {
+			}
+
+			@Override
+			public void close() {
+			}
+		});
+		logger.setLevel(Level.INFO);
+
+		ProcedureStore store = new ProcedureStore(16);
+		Compiler compiler = new Compiler(0, Allocator.Chaitin, store);
+		String program = main + first + second;
+		String kanga = compile(compiler, program);
+		check(reused.isEmpty(), "nothing to reuse from an empty store, reused " + reused);
+		check(store.size() == 3, "one entry per procedure, " + store.size() + " found");
+
+		/* every procedure hits */
+		reused.clear();
+		check(compile(compiler, program).equals(kanga), "same program, same Kanga");
+		check(reused.size() == 3, "every procedure reused, only " + reused);
+		check(store.size() == 3, "hits add no entry");
+
+		/* an edit misses for the procedure edited only */
+		reused.clear();
+		String edited = main + first + second.replace("PLUS TEMP 1 1", "PLUS TEMP 1 2");
+		compile(compiler, edited);
+		check(!reused.contains("Second") && reused.size() == 2, "only the edited procedure allocated, reused " + reused);
+		check(store.size() == 4, "the edited procedure added");
+
+		/* a label added to First shifts the global labels of Second, whose allocation is reused */
+		reused.clear();
+		String shifted = main + first.replace("L1\tNOOP\n", "L1\tNOOP\nL4\tNOOP\n") + second;
+		String result = compile(compiler, shifted);
+		check(reused.contains("Second"), "Second reused after a label shift, reused " + reused);
+		check(!section(result, "Second").equals(section(kanga, "Second")), "Second's labels shifted");
+
+		/* another allocator shares no entry */
+		reused.clear();
+		compile(new Compiler(0, Allocator.Chordal, store), program);
+		check(reused.isEmpty(), "entries are per allocator, reused " + reused);
+		System.out.println("ok");
+	}
+
+	/**
+	 * @return the Kanga of a program compiled with a store, checked against a compilation from scratch
+	 */
+	private static String compile(Compiler compiler, String program) throws Exception {
+		String kanga = compiler.compile(program);
+		String expected = new Compiler(compiler.getLevel(), compiler.getAllocator()).compile(program);
+		check(kanga.equals(expected), "incremental compilation differs from scratch:\n" + kanga + "instead of\n" + expected);
+		return kanga;
+	}
+
+	private static String section(String kanga, String procedure) {
+		return kanga.substring(kanga.indexOf(procedure + " ["));
+	}
+
+	private static void check(boolean condition, String message) {
+		if(!condition)
+			throw new AssertionError(message);
+	}
+}